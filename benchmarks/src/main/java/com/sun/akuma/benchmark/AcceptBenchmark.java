@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.benchmark;
+
+import com.sun.akuma.EchoServer;
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.NetworkServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the number of connections per second that {@link EchoServer} accepts and serves
+ * with the given number of worker processes.
+ *
+ * <p>
+ * Each operation opens a connection, has one byte echoed back, and closes the connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Threads(16)
+public class AcceptBenchmark {
+    @Param({"1","2","4"})
+    public int workers;
+
+    /**
+     * Whether the workers share one socket or bind their own with <tt>SO_REUSEPORT</tt>.
+     */
+    @Param({"false","true"})
+    public boolean reusePort;
+
+    private Process server;
+
+    @Setup
+    public void setUp() throws Exception {
+        // setsid, so that the frontend killing its process group doesn't take us down with it
+        ProcessBuilder pb = new ProcessBuilder("setsid",
+                new File(System.getProperty("java.home"),"bin/java").getPath(),
+                "-D"+Server.WORKERS+"="+workers,
+                "-D"+NetworkServer.class.getName()+".reusePort="+reusePort,
+                "-cp", System.getProperty("java.class.path"),
+                Server.class.getName());
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(new File("/dev/null"));
+        server = pb.start();
+
+        // wait for the workers to come up
+        long end = System.currentTimeMillis()+30*1000;
+        while(true) {
+            try {
+                echo();
+                break;
+            } catch (ConnectException e) {
+                if(System.currentTimeMillis()>end)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        server.destroy();
+        server.waitFor();
+    }
+
+    @Benchmark
+    public int echo() throws IOException {
+        Socket s = new Socket(InetAddress.getLoopbackAddress(),PORT);
+        try {
+            s.setSoTimeout(10*1000);
+            s.getOutputStream().write(42);
+            InputStream in = s.getInputStream();
+            return in.read();
+        } finally {
+            s.close();
+        }
+    }
+
+    private static final int PORT = 12345;
+
+    /**
+     * {@link EchoServer} with a configurable number of workers.
+     */
+    public static class Server extends EchoServer {
+        public Server(String[] args) {
+            super(args);
+        }
+
+        @Override
+        protected void forkWorkers(JavaVMArguments args) throws Exception {
+            forkWorkerThreads(args,Integer.getInteger(WORKERS));
+        }
+
+        public static void main(String[] args) throws Exception {
+            new Server(args).run();
+        }
+
+        static final String WORKERS = "benchmark.workers";
+    }
+}
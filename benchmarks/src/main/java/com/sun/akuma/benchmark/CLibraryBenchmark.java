@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.benchmark;
+
+import com.sun.akuma.CLibrary;
+import com.sun.jna.Native;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what a call through {@link CLibrary#LIBC} costs on top of the system call itself,
+ * which JNA pays in its reflective proxy and native stub.
+ *
+ * @see CLibraryStartupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class CLibraryBenchmark {
+    private final CLibrary libc = CLibrary.LIBC;
+    private final int[] pipe = new int[2];
+    private final byte[] buf = new byte[64];
+
+    @Setup
+    public void setUp() {
+        if(libc.pipe(pipe)!=0)
+            throw new IllegalStateException("pipe failed: "+libc.strerror(Native.getLastError()));
+    }
+
+    @TearDown
+    public void tearDown() {
+        libc.close(pipe[0]);
+        libc.close(pipe[1]);
+    }
+
+    /**
+     * The bare cost of a call.
+     */
+    @Benchmark
+    public int getpid() {
+        return libc.getpid();
+    }
+
+    /**
+     * A call with the fixed arguments of a variadic function.
+     */
+    @Benchmark
+    public int fcntl() {
+        return libc.fcntl(pipe[0],F_GETFD,0);
+    }
+
+    /**
+     * A failing call, followed by reading <tt>errno</tt> like callers do.
+     */
+    @Benchmark
+    public int closeFailure() {
+        libc.close(-1);
+        return Native.getLastError();
+    }
+
+    /**
+     * Calls that copy Java arrays to and from native memory.
+     */
+    @Benchmark
+    public int pipeRoundTrip() {
+        libc.write(pipe[1],buf,buf.length);
+        return libc.read(pipe[0],buf,buf.length);
+    }
+
+    private static final int F_GETFD = 1;
+}
@@ -0,0 +1,116 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.benchmark;
+
+import com.sun.akuma.Daemon;
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.SpawnStrategy;
+import com.sun.jna.ptr.IntByReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Measures the latency from {@link Daemon#daemonize(JavaVMArguments)} to the moment
+ * the daemonized JVM starts running its main method.
+ *
+ * <p>
+ * The daemon connects back to the benchmark as the first thing it does and then exits,
+ * so the measurement covers the spawn, the JVM start-up and the class loading of the main class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=20)
+@Fork(1)
+public class DaemonizeBenchmark {
+    @Param({"fork","posix_spawn"})
+    public String strategy;
+
+    private ServerSocket server;
+    private Daemon daemon;
+    private JavaVMArguments args;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new ServerSocket(0,50,InetAddress.getLoopbackAddress());
+
+        final SpawnStrategy spawner = strategy.equals("fork") ? SpawnStrategy.FORK_EXEC : SpawnStrategy.POSIX_SPAWN;
+        daemon = new Daemon() {
+            @Override
+            protected SpawnStrategy getSpawnStrategy() {
+                return spawner;
+            }
+        };
+
+        args = new JavaVMArguments();
+        args.add(Daemon.getCurrentExecutable());
+        args.add("-cp");
+        args.add(System.getProperty("java.class.path"));
+        args.add(Child.class.getName());
+        args.add(String.valueOf(server.getLocalPort()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        server.close();
+    }
+
+    @Benchmark
+    public void daemonize() throws IOException {
+        daemon.daemonize(new JavaVMArguments(args));
+        server.accept().close();
+
+        // reap the daemon, which normally is the job of init
+        LIBC.waitpid(-1,new IntByReference(),0);
+    }
+
+    /**
+     * The daemonized process.
+     */
+    public static class Child {
+        public static void main(String[] args) throws IOException {
+            new Socket().connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),Integer.parseInt(args[0])));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.benchmark;
+
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.NetworkServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Measures capturing and manipulating {@link JavaVMArguments}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class JavaVMArgumentsBenchmark {
+    /**
+     * Number of arguments in the list being manipulated.
+     */
+    @Param({"10","1000"})
+    public int size;
+
+    private JavaVMArguments args;
+    private int pid;
+
+    @Setup
+    public void setUp() {
+        pid = LIBC.getpid();
+        args = new JavaVMArguments();
+        args.add("java");
+        for (int i=0; i<size; i++)
+            args.add("-Dbenchmark.property"+i+"=value"+i);
+        args.add("Main");
+    }
+
+    @Benchmark
+    public JavaVMArguments current() throws IOException {
+        return JavaVMArguments.current();
+    }
+
+    /**
+     * Goes through {@link JavaVMArguments#of(int)}, which parses <tt>/proc/PID/cmdline</tt> on Linux.
+     */
+    @Benchmark
+    public JavaVMArguments ofPid() throws IOException {
+        return JavaVMArguments.of(pid);
+    }
+
+    /**
+     * Derives the arguments of a worker, like {@link NetworkServer} does.
+     */
+    @Benchmark
+    public JavaVMArguments setSystemProperty() {
+        JavaVMArguments copy = new JavaVMArguments(args);
+        copy.setSystemProperty("benchmark.property"+(size/2),"overridden");
+        copy.setSystemProperty("com.sun.akuma.NetworkServer.mode","worker");
+        return copy;
+    }
+
+    @Benchmark
+    public Object toStringArray() {
+        return args.toStringArray();
+    }
+}
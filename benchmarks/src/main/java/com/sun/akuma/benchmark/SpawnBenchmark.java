@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.benchmark;
+
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.SpawnStrategy;
+import com.sun.jna.ptr.IntByReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Compares the cost of launching a child process with each {@link SpawnStrategy}.
+ *
+ * <p>
+ * The cost of {@code fork} grows with the size of the parent's address space, so the benchmark
+ * touches a configurable amount of heap before measuring. The child is {@code /bin/true}, so that
+ * the numbers reflect the launch itself and not the JVM start-up of the child.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value=1, jvmArgsAppend="-Xmx6g")
+public class SpawnBenchmark {
+    @Param({"fork","posix_spawn"})
+    public String strategy;
+
+    /**
+     * Amount of heap in MB to populate before spawning.
+     */
+    @Param({"0","4096"})
+    public int ballast;
+
+    private SpawnStrategy spawner;
+    private JavaVMArguments args;
+    private byte[][] heap;
+
+    @Setup
+    public void setUp() {
+        spawner = strategy.equals("fork") ? SpawnStrategy.FORK_EXEC : SpawnStrategy.POSIX_SPAWN;
+        args = new JavaVMArguments();
+        args.add(EXE);
+
+        heap = new byte[ballast][];
+        for (int i=0; i<ballast; i++) {
+            heap[i] = new byte[1024*1024];
+            for (int j=0; j<heap[i].length; j+=4096)
+                heap[i][j] = 1;    // make sure the pages are actually mapped
+        }
+    }
+
+    @Benchmark
+    public int spawnAndWait() {
+        int pid = spawner.spawn(EXE,args);
+        if (pid<0)
+            throw new IllegalStateException("Failed to spawn: "+LIBC.strerror(-pid));
+        IntByReference status = new IntByReference();
+        LIBC.waitpid(pid,status,0);
+        return status.getValue();
+    }
+
+    private static final String EXE = "/bin/true";
+}
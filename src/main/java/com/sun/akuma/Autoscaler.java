@@ -0,0 +1,190 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+/**
+ * Decides how many workers a {@link WorkerPool} should run, based on the observed load.
+ *
+ * <p>
+ * The load is sampled periodically as how close the workers are to their {@link #setCapacity(int) capacity},
+ * and the number of connections waiting in the listen queue. The pool grows when workers
+ * stay busy or connections keep queueing up, and shrinks when it stays mostly idle.
+ *
+ * <p>
+ * To avoid flapping, the pool only grows after it's been overloaded for {@link #setScaleUpDelay(long) a while},
+ * and only shrinks after it's been underloaded for {@link #setScaleDownDelay(long) a longer while}
+ * and the remaining workers would still be under the scale-up threshold. After each change,
+ * further changes are held off for the {@link #setCooldown(long) cooldown period},
+ * which gives new workers the time to warm up.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class Autoscaler {
+    private final int min, max;
+
+    private double scaleUpThreshold = 0.8;
+    private double scaleDownThreshold = 0.3;
+    private long scaleUpDelay = 5*1000;
+    private long scaleDownDelay = 5*60*1000;
+    private long cooldown = 30*1000;
+    private int capacity = 256;
+
+    /**
+     * Since when the pool has been continuously overloaded/underloaded, or -1.
+     */
+    private long overloadedSince = -1, underloadedSince = -1;
+    /**
+     * When the last change was made.
+     */
+    private long lastChange = -1;
+
+    public Autoscaler(int min, int max) {
+        if(min<1 || max<min)
+            throw new IllegalArgumentException("Invalid range of workers: "+min+".."+max);
+        this.min = min;
+        this.max = max;
+    }
+
+    public int getMin() {
+        return min;
+    }
+
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Number of connections a worker can serve at once. A worker serving this many counts as fully busy,
+     * and one serving half as many as half busy. Defaults to 256.
+     */
+    public Autoscaler setCapacity(int connections) {
+        if(connections<1)
+            throw new IllegalArgumentException("Invalid capacity: "+connections);
+        this.capacity = connections;
+        return this;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Determines how busy a worker serving the given number of connections is, between 0 and 1.
+     * The sum of this over the workers is what {@link #sample(int, double, int, long)} takes.
+     */
+    public double getLoad(long active) {
+        return Math.min(1.0,(double)active/capacity);
+    }
+
+    /**
+     * The pool grows when the fraction of busy workers is at or above this. Defaults to 0.8.
+     */
+    public Autoscaler setScaleUpThreshold(double ratio) {
+        this.scaleUpThreshold = ratio;
+        return this;
+    }
+
+    /**
+     * The pool shrinks when the fraction of busy workers is at or below this. Defaults to 0.3.
+     */
+    public Autoscaler setScaleDownThreshold(double ratio) {
+        this.scaleDownThreshold = ratio;
+        return this;
+    }
+
+    /**
+     * How long the pool has to stay overloaded before it grows, in milliseconds. Defaults to 5 seconds.
+     */
+    public Autoscaler setScaleUpDelay(long ms) {
+        this.scaleUpDelay = ms;
+        return this;
+    }
+
+    /**
+     * How long the pool has to stay underloaded before it shrinks, in milliseconds. Defaults to 5 minutes.
+     */
+    public Autoscaler setScaleDownDelay(long ms) {
+        this.scaleDownDelay = ms;
+        return this;
+    }
+
+    /**
+     * How long to wait after a change before making another, in milliseconds. Defaults to 30 seconds.
+     */
+    public Autoscaler setCooldown(long ms) {
+        this.cooldown = ms;
+        return this;
+    }
+
+    /**
+     * Takes a sample of the load, and decides the number of workers.
+     *
+     * @param workers
+     *      Number of workers that are currently running.
+     * @param busy
+     *      Load of those workers, in the number of fully busy workers. See {@link #getLoad(long)}.
+     * @param queued
+     *      Number of connections waiting to be accepted, or -1 if that's unknown.
+     * @param now
+     *      Current time in milliseconds.
+     * @return
+     *      The number of workers to run.
+     */
+    public synchronized int sample(int workers, double busy, int queued, long now) {
+        if(workers<min || workers>max)
+            return change(Math.max(min,Math.min(max,workers)),now);
+
+        double busyRatio = workers==0 ? 1 : busy/workers;
+        boolean overloaded = queued>0 || busyRatio>=scaleUpThreshold;
+        // only shrink if the rest can take over the load without becoming overloaded themselves
+        boolean underloaded = queued<=0 && busyRatio<=scaleDownThreshold
+                && (workers<=1 || busy/(workers-1)<scaleUpThreshold);
+
+        overloadedSince = overloaded ? (overloadedSince<0 ? now : overloadedSince) : -1;
+        underloadedSince = underloaded ? (underloadedSince<0 ? now : underloadedSince) : -1;
+
+        if(lastChange>=0 && now-lastChange<cooldown)
+            return workers;
+
+        if(overloaded && workers<max && now-overloadedSince>=scaleUpDelay) {
+            // grow enough to bring the busy ratio under the threshold in one step, if we can tell
+            int n = Math.max(workers+1,(int)Math.ceil(busy/scaleUpThreshold));
+            return change(Math.min(n,max),now);
+        }
+        if(underloaded && workers>min && now-underloadedSince>=scaleDownDelay)
+            return change(workers-1,now);   // shrink gradually
+        return workers;
+    }
+
+    private int change(int n, long now) {
+        lastChange = now;
+        overloadedSince = underloadedSince = -1;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return "Autoscaler["+min+".."+max+"]";
+    }
+}
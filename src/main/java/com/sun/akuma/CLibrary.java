@@ -44,6 +44,7 @@ public interface CLibrary extends Library {
     int umask(int mask);
     int getpid();
     int getppid();
+    int geteuid();
     int chdir(String dir);
     int execv(String file, StringArray args);
     int setenv(String name, String value);
@@ -86,5 +87,63 @@ public interface CLibrary extends Library {
      */
     int readlink(String filename, Memory buffer, NativeLong size);
 
+    /**
+     * Launches a new process without duplicating the address space of the caller.
+     *
+     * @return
+     *      0 on success, or the error number. Unlike most other functions, this doesn't set errno.
+     */
+    int posix_spawn(IntByReference pid, String path, Pointer fileActions, Pointer attrp, StringArray argv, Pointer envp);
+
+    int waitpid(int pid, IntByReference status, int options);
+
+    int setsockopt(int sockfd, int level, int optname, Pointer optval, int optlen);
+    int getsockopt(int sockfd, int level, int optname, Pointer optval, IntByReference optlen);
+
+    int dup2(int oldfd, int newfd);
+
+    int close(int fd);
+    int pipe(int[] fds);
+    int pipe2(int[] fds, int flags);
+    NativeLong lseek(int fd, NativeLong offset, int whence);
+
+    /**
+     * Creates an anonymous file in memory. Only available on Linux 3.17 and later with glibc 2.27 and later.
+     */
+    int memfd_create(String name, int flags);
+    int read(int fd, byte[] buf, int count);
+    int write(int fd, byte[] buf, int count);
+    int fcntl(int fd, int cmd, int arg);
+    int poll(Pointer fds, int nfds, int timeout);
+    int getsockname(int sockfd, Pointer addr, IntByReference addrlen);
+    int getpeername(int sockfd, Pointer addr, IntByReference addrlen);
+    int socket(int domain, int type, int protocol);
+    int bind(int sockfd, Pointer addr, int addrlen);
+    int connect(int sockfd, Pointer addr, int addrlen);
+    int listen(int sockfd, int backlog);
+    int socketpair(int domain, int type, int protocol, int[] sv);
+    int accept4(int sockfd, Pointer addr, Pointer addrlen, int flags);
+    int shutdown(int sockfd, int how);
+    NativeLong sendmsg(int sockfd, Pointer msg, int flags);
+    NativeLong recvmsg(int sockfd, Pointer msg, int flags);
+
+    /**
+     * Gets/sets the CPU affinity mask of the given thread, or the calling thread if the pid is 0.
+     */
+    int sched_getaffinity(int pid, int cpusetsize, Pointer mask);
+    int sched_setaffinity(int pid, int cpusetsize, Pointer mask);
+
+    /**
+     * Closes all the file descriptors from first to last, inclusive.
+     * Only available on Linux 5.9 and later with glibc 2.34 and later.
+     */
+    int close_range(int first, int last, int flags);
+
+    NativeLong sysconf(int name);
+
+    int posix_spawn_file_actions_init(Pointer fileActions);
+    int posix_spawn_file_actions_adddup2(Pointer fileActions, int fd, int newfd);
+    int posix_spawn_file_actions_destroy(Pointer fileActions);
+
     public static final CLibrary LIBC = (CLibrary) Native.loadLibrary("c",CLibrary.class);
 }
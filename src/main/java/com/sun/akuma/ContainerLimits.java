@@ -0,0 +1,303 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * CPU and memory limits that cgroups impose on the current process, such as those of a container.
+ *
+ * <p>
+ * Workers of {@link NetworkServer} inherit the JVM options of the frontend, so in a memory-limited container,
+ * every worker sizes its heap as if it had the whole container to itself, and together they get killed by
+ * the OOM killer. This class lets the pool size itself, and each worker, to the limits of the container.
+ * Both cgroup v1 and v2 are supported.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ContainerLimits {
+    private final double cpus;
+    private final long memory;
+
+    /**
+     * @param cpus
+     *      Number of CPUs the processes can use, which can be fractional, or a negative value if unlimited.
+     * @param memory
+     *      Bytes of memory the processes can use, or a negative value if unlimited.
+     */
+    public ContainerLimits(double cpus, long memory) {
+        this.cpus = cpus;
+        this.memory = memory;
+    }
+
+    /**
+     * Number of CPUs available to the processes, or a negative value if unlimited.
+     */
+    public double getCpus() {
+        return cpus;
+    }
+
+    /**
+     * Bytes of memory available to the processes, or a negative value if unlimited.
+     */
+    public long getMemory() {
+        return memory;
+    }
+
+    /**
+     * Suggests the number of workers: one per CPU, as long as each of them gets a reasonable amount of memory.
+     */
+    public int getWorkerCount() {
+        int n = Runtime.getRuntime().availableProcessors();
+        if(cpus>0)
+            n = Math.min(n,(int)Math.ceil(cpus));
+        if(memory>0)
+            n = (int)Math.min(n,memory/MIN_WORKER_MEMORY);
+        return Math.max(n,1);
+    }
+
+    /**
+     * Rewrites the JVM options of a worker, so that the given number of workers fit in the limits.
+     *
+     * <p>
+     * Each worker gets an even share of the memory that's left after the given reservation, and
+     * {@value #HEAP_PERCENTAGE}% of its share becomes the maximum heap size. The rest is for the metaspace,
+     * the code cache, thread stacks, and the other native memory of the JVM. A smaller maximum heap size
+     * that's already specified is left alone.
+     *
+     * <p>
+     * Each worker is also told its share of CPUs by <tt>-XX:ActiveProcessorCount</tt>, unless already specified.
+     * This lets the JVM choose the garbage collector and size the GC and the compiler threads for the share,
+     * instead of for the whole container. A worker with a share of a single CPU gets the serial collector.
+     *
+     * @param workers
+     *      The maximum number of workers that run at the same time.
+     * @param reserved
+     *      Bytes of memory used by other processes in the container, such as the frontend.
+     */
+    public void sizeWorker(JavaVMArguments args, int workers, long reserved) {
+        if(memory>0) {
+            long heap = (memory-reserved)/workers*HEAP_PERCENTAGE/100;
+            heap = Math.max(heap/MB,MIN_HEAP_MB)*MB;
+
+            long current = -1;
+            for (String arg : args) {
+                String size = getMaxHeapSize(arg);
+                if(size!=null)
+                    current = parseSize(size);
+            }
+
+            if(current<0 || current>heap) {
+                for (Iterator<String> itr = args.iterator(); itr.hasNext(); ) {
+                    String arg = itr.next();
+                    String initial = getInitialHeapSize(arg);
+                    if(getMaxHeapSize(arg)!=null || arg.startsWith("-XX:MaxRAMPercentage=")
+                    || arg.startsWith("-XX:MaxRAM=") || (initial!=null && parseSize(initial)>heap))
+                        itr.remove();
+                }
+                args.add(1,"-Xmx"+heap/MB+"m");
+            }
+        }
+
+        if(cpus>0 && JavaVMArguments.getJavaVersion()>=10) {
+            for (String arg : args)
+                if(arg.startsWith(ACTIVE_PROCESSOR_COUNT))
+                    return;
+            args.add(1,ACTIVE_PROCESSOR_COUNT+Math.max(1,(int)Math.ceil(cpus/workers)));
+        }
+    }
+
+    private static String getMaxHeapSize(String arg) {
+        if(arg.startsWith("-Xmx"))                  return arg.substring(4);
+        if(arg.startsWith("-XX:MaxHeapSize="))      return arg.substring(16);
+        return null;
+    }
+
+    private static String getInitialHeapSize(String arg) {
+        if(arg.startsWith("-Xms"))                  return arg.substring(4);
+        if(arg.startsWith("-XX:InitialHeapSize="))  return arg.substring(20);
+        return null;
+    }
+
+    /**
+     * Parses the memory size notation of JVM options, such as "512m".
+     */
+    /*package*/ static long parseSize(String size) {
+        int shift = "kmgt".indexOf(Character.toLowerCase(size.charAt(size.length()-1)))+1;
+        if(shift>0)
+            size = size.substring(0,size.length()-1);
+        return Long.parseLong(size)<<(10*shift);
+    }
+
+    /**
+     * Obtains the limits of the current process.
+     * On platforms without cgroups, this reports no limits.
+     */
+    public static ContainerLimits current() {
+        try {
+            return read(new File("/proc/self/cgroup"),new File("/sys/fs/cgroup"));
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read cgroup limits", e);
+            return new ContainerLimits(-1,-1);
+        }
+    }
+
+    /**
+     * Reads the limits of a process.
+     *
+     * @param cgroup
+     *      The <tt>/proc/PID/cgroup</tt> file of the process.
+     * @param root
+     *      The directory where cgroup file systems are mounted, normally <tt>/sys/fs/cgroup</tt>.
+     */
+    public static ContainerLimits read(File cgroup, File root) throws IOException {
+        double cpus = -1;
+        long memory = -1;
+
+        for (String line : readLines(cgroup)) {
+            // hierarchy-ID:controller-list:cgroup-path
+            String[] tokens = line.split(":",3);
+            if(tokens.length<3)     continue;
+            String path = tokens[2];
+
+            if(tokens[1].length()==0) {
+                // cgroup v2, where every controller is in the same hierarchy
+                for (File dir : ancestors(root,path)) {
+                    String[] max = split(readLine(new File(dir,"cpu.max")));
+                    if(max!=null && max.length==2 && !max[0].equals("max"))
+                        cpus = lower(cpus,Double.parseDouble(max[0])/Double.parseDouble(max[1]));
+                    String mem = readLine(new File(dir,"memory.max"));
+                    if(mem!=null && !mem.equals("max"))
+                        memory = lower(memory,Long.parseLong(mem));
+                }
+                continue;
+            }
+
+            for (String controller : tokens[1].split(",")) {
+                // co-mounted controllers are mounted under the combined name, such as "cpu,cpuacct"
+                File mount = new File(root,tokens[1]);
+                if(!mount.isDirectory())
+                    mount = new File(root,controller);
+                if(!mount.isDirectory())
+                    continue;
+
+                if(controller.equals("cpu")) {
+                    for (File dir : ancestors(mount,path)) {
+                        String quota = readLine(new File(dir,"cpu.cfs_quota_us"));
+                        String period = readLine(new File(dir,"cpu.cfs_period_us"));
+                        if(quota!=null && period!=null && Long.parseLong(quota)>0)
+                            cpus = lower(cpus,Double.parseDouble(quota)/Double.parseDouble(period));
+                    }
+                }
+                if(controller.equals("memory")) {
+                    for (File dir : ancestors(mount,path)) {
+                        String limit = readLine(new File(dir,"memory.limit_in_bytes"));
+                        // unlimited is reported as a huge number rounded down to the page size
+                        if(limit!=null && Long.parseLong(limit)<UNLIMITED)
+                            memory = lower(memory,Long.parseLong(limit));
+                    }
+                }
+            }
+        }
+
+        return new ContainerLimits(cpus,memory);
+    }
+
+    /**
+     * The cgroup of the given path and all its ancestors, as the limits of the ancestors apply as well.
+     */
+    private static List<File> ancestors(File mount, String path) {
+        List<File> r = new ArrayList<File>();
+        while(true) {
+            r.add(new File(mount,path));
+            int idx = path.lastIndexOf('/');
+            if(idx<0 || path.length()<=1)    break;
+            path = path.substring(0,idx);
+        }
+        return r;
+    }
+
+    private static double lower(double a, double b) {
+        return a<0 ? b : Math.min(a,b);
+    }
+
+    private static long lower(long a, long b) {
+        return a<0 ? b : Math.min(a,b);
+    }
+
+    private static String[] split(String line) {
+        return line==null ? null : line.split(" ");
+    }
+
+    /**
+     * Reads the first line of a file, or null if it doesn't exist.
+     */
+    private static String readLine(File f) throws IOException {
+        if(!f.exists())     return null;
+        List<String> lines = readLines(f);
+        return lines.isEmpty() ? null : lines.get(0).trim();
+    }
+
+    private static List<String> readLines(File f) throws IOException {
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            List<String> lines = new ArrayList<String>();
+            String line;
+            while((line=r.readLine())!=null)
+                lines.add(line);
+            return lines;
+        } finally {
+            r.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ContainerLimits[cpus="+cpus+",memory="+memory+"]";
+    }
+
+    /**
+     * Percentage of the memory share of a worker that becomes its maximum heap size.
+     */
+    public static final int HEAP_PERCENTAGE = 50;
+
+    /**
+     * Memory below which a worker isn't worth running.
+     */
+    private static final long MIN_WORKER_MEMORY = 128L*1024*1024;
+    private static final long MIN_HEAP_MB = 16;
+    private static final long MB = 1024*1024;
+    private static final long UNLIMITED = 1L<<62;
+    private static final String ACTIVE_PROCESSOR_COUNT = "-XX:ActiveProcessorCount=";
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerLimits.class.getName());
+}
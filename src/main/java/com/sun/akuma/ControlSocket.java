@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Unix domain socket in the frontend that lets local tools query and control the {@link WorkerPool},
+ * without signals and PID files.
+ *
+ * <p>
+ * The protocol is line based, so that it can be driven by <tt>socat</tt> as well as by programs.
+ * A client sends one command per line, and can send any number of them on one connection.
+ * Each response starts with a line of either <tt>OK</tt> or <tt>ERR</tt> followed by the reason,
+ * then zero or more lines of <tt>key=value</tt> pairs, and ends with an empty line.
+ *
+ * <dl>
+ * <dt><tt>status</tt><dd>Summary of the pool.
+ * <dt><tt>workers</tt><dd>One line per worker.
+ * <dt><tt>scale N</tt><dd>Changes the number of workers to N, and stops autoscaling. See {@link WorkerPool#resize(int)}.
+ * <dt><tt>reload</tt><dd>Replaces the workers one by one. See {@link WorkerPool#restart()}.
+ * <dt><tt>drain</tt><dd>Stops accepting connections, and exits once the workers finish theirs, like <tt>SIGTERM</tt>.
+ * </dl>
+ *
+ * <p>
+ * Like {@link Dispatcher}, this works on raw file descriptors, so it doesn't need Unix domain socket support
+ * from the JDK. The socket is only accessible to the user running the server.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+/*package*/ final class ControlSocket {
+    private final WorkerPool pool;
+    /**
+     * Does what <tt>SIGTERM</tt> does.
+     */
+    private final Runnable drain;
+
+    /*package*/ ControlSocket(WorkerPool pool, Runnable drain) {
+        this.pool = pool;
+        this.drain = drain;
+    }
+
+    /**
+     * Listening socket, or -1 before {@link #bind(String)}.
+     */
+    private int listener = -1;
+    private String path;
+
+    /**
+     * Starts listening on the given path, replacing the socket file left by an earlier run if any.
+     * Commands are not served until {@link #start()}, so this can be called before the pool has any workers,
+     * to fail early.
+     *
+     * @throws IOException
+     *      if another process is still listening on the path, for example because the server is already running.
+     */
+    /*package*/ void bind(String path) throws IOException {
+        byte[] name = path.getBytes(NATIVE);
+        if(name.length>=SUN_PATH_LEN)
+            throw new IOException("The control socket path is too long: "+path);
+        Memory addr = new Memory(2+SUN_PATH_LEN);
+        addr.clear();
+        addr.setShort(0,(short)AF_UNIX);
+        addr.write(2,name,0,name.length);
+
+        File f = new File(path);
+        FileDescriptors.deleteStaleSocket(f);
+
+        int fd = LIBC.socket(AF_UNIX,SOCK_STREAM|SOCK_CLOEXEC,0);
+        if(fd<0)
+            throw new IOException("Failed to create the control socket: "+LIBC.strerror(Native.getLastError()));
+
+        if(LIBC.bind(fd,addr,2+name.length+1)!=0) {
+            int err = Native.getLastError();
+            LIBC.close(fd);
+            throw new IOException("Failed to bind the control socket "+path+": "+LIBC.strerror(err));
+        }
+        f.deleteOnExit();
+
+        // the permission of the socket file controls who can connect, and nobody can until we listen.
+        // umask would do this without the window, but it's process-wide and other threads may be creating files
+        try {
+            Files.setPosixFilePermissions(f.toPath(),OWNER_ONLY);
+        } catch (IOException e) {
+            LIBC.close(fd);
+            f.delete();
+            throw e;
+        }
+
+        if(LIBC.listen(fd,BACKLOG)!=0) {
+            int err = Native.getLastError();
+            LIBC.close(fd);
+            f.delete();
+            throw new IOException("Failed to listen on the control socket "+path+": "+LIBC.strerror(err));
+        }
+        this.listener = fd;
+        this.path = path;
+    }
+
+    /**
+     * Starts serving commands on the socket opened by {@link #bind(String)}.
+     */
+    /*package*/ void start() {
+        if(listener<0)
+            throw new IllegalStateException("The control socket isn't bound");
+        final int fd = listener;
+        Thread t = new Thread("Control socket "+path) {
+            @Override
+            public void run() {
+                acceptLoop(fd);
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void acceptLoop(int listener) {
+        while(true) {
+            final int fd = LIBC.accept4(listener,null,null,SOCK_CLOEXEC);
+            if(fd<0) {
+                LOGGER.fine("accept failed: "+LIBC.strerror(Native.getLastError()));
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            // a client can keep the connection to send commands at high frequency, so each gets its own thread
+            Thread t = new Thread("Control connection fd "+fd) {
+                @Override
+                public void run() {
+                    try {
+                        serve(fd);
+                    } finally {
+                        LIBC.close(fd);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    private void serve(int fd) {
+        byte[] buf = new byte[MAX_REQUEST];
+        StringBuilder line = new StringBuilder();
+        while(true) {
+            int n = LIBC.read(fd,buf,buf.length);
+            if(n<=0) {
+                if(n<0 && Native.getLastError()==EINTR)
+                    continue;
+                return;
+            }
+            for( int i=0; i<n; i++ ) {
+                char ch = (char)(buf[i]&0xFF);
+                if(ch!='\n') {
+                    if(line.length()>=MAX_REQUEST) {
+                        reply(fd,"ERR request too long\n\n");
+                        return;
+                    }
+                    line.append(ch);
+                    continue;
+                }
+                String response = execute(line.toString().trim());
+                line.setLength(0);
+                if(!reply(fd,response))
+                    return;
+            }
+        }
+    }
+
+    private static boolean reply(int fd, String response) {
+        byte[] data = response.getBytes(NATIVE);
+        return LIBC.write(fd,data,data.length)==data.length;
+    }
+
+    /**
+     * Executes a command, and returns the response including the terminating empty line.
+     */
+    /*package*/ String execute(String command) {
+        StringBuilder r = new StringBuilder("OK\n");
+        try {
+            String[] tokens = command.split("\\s+");
+            String name = tokens[0];
+            if(name.equals("status")) {
+                Scoreboard sb = pool.getScoreboard();
+                long active=0, accepted=0;
+                for (WorkerPool.Worker w : pool.getWorkers()) {
+                    Scoreboard.Slot s = sb.get(w.slot);
+                    active += s.getActive();
+                    accepted += s.getAccepted();
+                }
+                r.append("pid=").append(LIBC.getpid()).append('\n');
+                r.append("state=").append(pool.isShuttingDown() ? "draining" : "running").append('\n');
+                r.append("size=").append(pool.getSize()).append('\n');
+                r.append("workers=").append(pool.getWorkers().size()).append('\n');
+                r.append("generation=").append(pool.getGeneration()).append('\n');
+                r.append("autoscaling=").append(pool.getAutoscaler()!=null).append('\n');
+                r.append("active=").append(active).append('\n');
+                r.append("accepted=").append(accepted).append('\n');
+            } else
+            if(name.equals("workers")) {
+                Scoreboard sb = pool.getScoreboard();
+                long now = System.currentTimeMillis();
+                for (WorkerPool.Worker w : pool.getWorkers()) {
+                    Scoreboard.Slot s = sb.get(w.slot);
+                    r.append("slot=").append(w.slot)
+                     .append(" pid=").append(w.pid)
+                     .append(" generation=").append(w.generation)
+                     .append(" uptime=").append((now-w.startTime)/1000)
+                     .append(" state=").append(s.getState())
+                     .append(" active=").append(s.getActive())
+                     .append(" accepted=").append(s.getAccepted())
+                     .append('\n');
+                }
+            } else
+            if(name.equals("scale") && tokens.length==2) {
+                int n = Integer.parseInt(tokens[1]);
+                synchronized (pool) {
+                    pool.resize(n);
+                    // the autoscaler would override an explicit size otherwise
+                    pool.setAutoscaler(null);
+                }
+            } else
+            if(name.equals("reload")) {
+                pool.restart();
+            } else
+            if(name.equals("drain")) {
+                if(pool.isShuttingDown())
+                    return "ERR already draining\n\n";
+                drain.run();
+            } else {
+                return "ERR unknown command: "+command+"\n\n";
+            }
+        } catch (NumberFormatException e) {
+            return "ERR not a number: "+command+"\n\n";
+        } catch (IllegalArgumentException e) {
+            return "ERR "+e.getMessage()+"\n\n";
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to execute "+command, e);
+            return "ERR "+e+"\n\n";
+        }
+        return r.append('\n').toString();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ControlSocket.class.getName());
+
+    private static final Charset NATIVE = Charset.forName(JavaVMArguments.NATIVE_ENCODING);
+    /**
+     * Longest command line accepted.
+     */
+    private static final int MAX_REQUEST = 256;
+    private static final int BACKLOG = 16;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    // these values are Linux specific
+    private static final int AF_UNIX = 1;
+    private static final int SOCK_STREAM = 1;
+    private static final int SOCK_CLOEXEC = 0x80000;
+    private static final int SUN_PATH_LEN = 108;
+    private static final int EINTR = 4;
+}
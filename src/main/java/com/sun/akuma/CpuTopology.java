@@ -0,0 +1,199 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * CPUs of this host, grouped by NUMA node, and the CPU affinity of the current thread.
+ *
+ * <p>
+ * {@link NetworkServer} uses this to place workers across NUMA nodes, so that each worker
+ * stays close to its memory instead of being moved across all the cores by the scheduler.
+ * CPU sets are represented as {@link BitSet}s indexed by the CPU number.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class CpuTopology {
+    private final List<BitSet> nodes;
+    /**
+     * All the CPUs, interleaved across nodes: the first CPU of each node, then the second of each node, and so on.
+     */
+    private final List<Integer> interleaved = new ArrayList<Integer>();
+
+    public CpuTopology(List<BitSet> nodes) {
+        if(nodes.isEmpty())
+            throw new IllegalArgumentException("No NUMA node");
+        this.nodes = Collections.unmodifiableList(new ArrayList<BitSet>(nodes));
+
+        int[] next = new int[nodes.size()];
+        boolean more = true;
+        while(more) {
+            more = false;
+            for( int i=0; i<nodes.size(); i++ ) {
+                if(next[i]<0)   continue;
+                next[i] = nodes.get(i).nextSetBit(next[i]);
+                if(next[i]<0)   continue;
+                interleaved.add(next[i]++);
+                more = true;
+            }
+        }
+        if(interleaved.isEmpty())
+            throw new IllegalArgumentException("No CPU");
+    }
+
+    /**
+     * CPUs of each NUMA node.
+     */
+    public List<BitSet> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the CPUs of the NUMA node that the i-th worker is placed on.
+     * Workers are assigned to nodes in the round-robin fashion.
+     */
+    public BitSet getNodeOf(int i) {
+        return (BitSet)nodes.get(i%nodes.size()).clone();
+    }
+
+    /**
+     * Gets the single CPU that the i-th worker is placed on.
+     * Consecutive workers are spread across nodes first, then across CPUs within a node.
+     */
+    public BitSet getCpuOf(int i) {
+        BitSet r = new BitSet();
+        r.set(interleaved.get(i%interleaved.size()));
+        return r;
+    }
+
+    /**
+     * Obtains the topology of this host from <tt>/sys/devices/system/node</tt>.
+     * On other platforms, all the available processors are treated as one node.
+     */
+    public static CpuTopology current() {
+        List<BitSet> nodes = new ArrayList<BitSet>();
+        for( int i=0; ; i++ ) {
+            File cpulist = new File("/sys/devices/system/node/node"+i+"/cpulist");
+            if(!cpulist.exists())   break;
+            try {
+                BitSet cpus = parseList(readLine(cpulist));
+                if(!cpus.isEmpty())     // memory-only nodes don't have CPUs
+                    nodes.add(cpus);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to read "+cpulist, e);
+            }
+        }
+        if(nodes.isEmpty()) {
+            BitSet all = new BitSet();
+            all.set(0,Runtime.getRuntime().availableProcessors());
+            nodes.add(all);
+        }
+        return new CpuTopology(nodes);
+    }
+
+    /**
+     * Parses the list format the kernel uses for CPU sets, such as "0-3,8,10-11".
+     */
+    public static BitSet parseList(String list) {
+        BitSet r = new BitSet();
+        for (String range : list.trim().split(",")) {
+            if(range.length()==0)   continue;
+            int dash = range.indexOf('-');
+            if(dash<0)
+                r.set(Integer.parseInt(range));
+            else
+                r.set(Integer.parseInt(range.substring(0,dash)),Integer.parseInt(range.substring(dash+1))+1);
+        }
+        return r;
+    }
+
+    /**
+     * Gets the CPUs the current thread is allowed to run on.
+     */
+    public static BitSet getAffinity() throws IOException {
+        Memory mask = new Memory(CPU_SET_SIZE);
+        mask.clear();
+        if(LIBC.sched_getaffinity(0,CPU_SET_SIZE,mask)!=0)
+            throw new IOException("sched_getaffinity failed: "+LIBC.strerror(Native.getLastError()));
+
+        BitSet r = new BitSet();
+        for( int i=0; i<CPU_SET_SIZE*8; i++ )
+            if((mask.getByte(i/8)&(1<<(i%8)))!=0)
+                r.set(i);
+        return r;
+    }
+
+    /**
+     * Restricts the current thread to the given CPUs.
+     * Processes and threads started from this thread inherit it.
+     */
+    public static void setAffinity(BitSet cpus) throws IOException {
+        Memory mask = new Memory(CPU_SET_SIZE);
+        mask.clear();
+        for( int i=cpus.nextSetBit(0); i>=0; i=cpus.nextSetBit(i+1) ) {
+            if(i>=CPU_SET_SIZE*8)
+                throw new IllegalArgumentException("CPU "+i+" is out of range");
+            mask.setByte(i/8,(byte)(mask.getByte(i/8)|(1<<(i%8))));
+        }
+        if(LIBC.sched_setaffinity(0,CPU_SET_SIZE,mask)!=0)
+            throw new IOException("sched_setaffinity "+cpus+" failed: "+LIBC.strerror(Native.getLastError()));
+    }
+
+    private static String readLine(File f) throws IOException {
+        BufferedReader r = new BufferedReader(new FileReader(f));
+        try {
+            String line = r.readLine();
+            return line==null ? "" : line;
+        } finally {
+            r.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CpuTopology"+nodes;
+    }
+
+    /**
+     * Size of cpu_set_t in glibc, which covers 1024 CPUs.
+     */
+    private static final int CPU_SET_SIZE = 128;
+
+    private static final Logger LOGGER = Logger.getLogger(CpuTopology.class.getName());
+}
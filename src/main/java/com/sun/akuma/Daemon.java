@@ -26,12 +26,13 @@ package com.sun.akuma;
 import com.sun.jna.Memory;
 import com.sun.jna.Native;
 import com.sun.jna.NativeLong;
-import com.sun.jna.StringArray;
 import static com.sun.akuma.CLibrary.LIBC;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.File;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -70,6 +71,11 @@ import java.util.logging.Logger;
  * <p>
  * Alternatively, your main class can extend from Daemon, so that you can customize some of the behaviors.
  *
+ * <p>
+ * If the <tt>com.sun.akuma.Daemon.readyTimeout</tt> system property is set (or {@link #getReadyTimeout()}
+ * is overridden), {@link #daemonize()} doesn't return until the daemon calls {@link #notifyReady()},
+ * so that scripts that launch the daemon can tell when it's actually ready to serve.
+ *
  * @author Kohsuke Kawaguchi
  */
 public class Daemon {
@@ -126,26 +132,194 @@ public class Daemon {
         // let the child process now that it's a daemon
         args.setSystemProperty(Daemon.class.getName(),"daemonized");
 
-        // prepare for a fork
-        String exe = getCurrentExecutable();
-        StringArray sa = args.toStringArray();
+        long timeout = getReadyTimeout();
+        int[] pipe = null;
+        if(timeout>0) {
+            // the child inherits the write end, and tells us when it's ready through it
+            pipe = new int[2];
+            if(LIBC.pipe(pipe)!=0) {
+                System.err.println("pipe failed: "+LIBC.strerror(Native.getLastError()));
+                System.exit(-1);
+            }
+            LIBC.fcntl(pipe[0],F_SETFD,FD_CLOEXEC);
+            args.setSystemProperty(READY_FD_PROPERTY,String.valueOf(pipe[1]));
+        }
+
+        SharedArchive archive = getSharedArchive();
+        boolean createsArchive = archive!=null && archive.apply(args);
 
-        int i = LIBC.fork();
+        long start = System.currentTimeMillis();
+        // the daemon doesn't inherit anything else that leaked into this process
+        int i = getSpawnStrategy().spawn(getCurrentExecutable(), args, -1, pipe!=null ? new int[]{pipe[1]} : new int[0]);
         if(i<0) {
-            LIBC.perror("initial fork failed");
+            System.err.println("initial fork failed: "+LIBC.strerror(-i));
             System.exit(-1);
         }
-        if(i==0) {
-            // with fork, we lose all the other critical threads, to exec to Java again
-            LIBC.execv(exe,sa);
-            System.err.println("exec failed");
-            LIBC.perror("initial exec failed");
-            System.exit(-1);
+        if(createsArchive)
+            archive.launched(i);
+
+        if(pipe!=null) {
+            // so that we see EOF when the child dies
+            LIBC.close(pipe[1]);
+            String status = readStatus(pipe[0],start+timeout);
+            LIBC.close(pipe[0]);
+            if(status==null) {
+                System.err.println("daemon (pid="+i+") didn't become ready in "+timeout+"ms");
+                System.exit(-1);
+            }
+            if(!status.equals(READY)) {
+                if(status.startsWith(FAILED))
+                    status = status.substring(FAILED.length());
+                System.err.println("daemon (pid="+i+") failed to start: "+status);
+                System.exit(-1);
+            }
+            LOGGER.info("Daemon (pid="+i+") became ready in "+(System.currentTimeMillis()-start)+"ms");
         }
 
         // parent exits
     }
 
+    /**
+     * Determines how long {@link #daemonize(JavaVMArguments)} waits for the daemon to call {@link #notifyReady()},
+     * in milliseconds. If this is 0, it doesn't wait at all.
+     *
+     * <p>
+     * By default, this is taken from the <tt>com.sun.akuma.Daemon.readyTimeout</tt> system property.
+     */
+    protected long getReadyTimeout() {
+        return Long.getLong(Daemon.class.getName()+".readyTimeout",0);
+    }
+
+    /**
+     * Determines the {@link SharedArchive} that speeds up the start of the JVMs launched from this process,
+     * or null to not use one.
+     *
+     * <p>
+     * By default, this is enabled by the <tt>com.sun.akuma.Daemon.sharedArchive</tt> system property, and the archive
+     * is kept in the directory specified by the <tt>com.sun.akuma.Daemon.sharedArchiveDir</tt> system property,
+     * or in a directory of the current user under the temporary directory. Either way, the directory is only used
+     * if it's private to the current user. See {@link SharedArchive}.
+     */
+    protected synchronized SharedArchive getSharedArchive() {
+        if(sharedArchive==null && Boolean.getBoolean(Daemon.class.getName()+".sharedArchive")) {
+            String dir = System.getProperty(Daemon.class.getName()+".sharedArchiveDir");
+            sharedArchive = new SharedArchive(dir!=null ? new File(dir)
+                    : new File(System.getProperty("java.io.tmpdir"),"akuma-cds-"+System.getProperty("user.name")));
+        }
+        return sharedArchive;
+    }
+
+    /**
+     * Reads a line from the readiness pipe.
+     *
+     * @return
+     *      {@link #READY}, {@link #FAILED} followed by the reason, or some other description of the failure.
+     *      null if the deadline has passed.
+     */
+    private static String readStatus(int fd, long deadline) {
+        Memory pollfd = new Memory(8);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        while(true) {
+            long remaining = deadline-System.currentTimeMillis();
+            if(remaining<=0)
+                return null;
+            pollfd.setInt(0,fd);
+            pollfd.setShort(4,POLLIN);
+            pollfd.setShort(6,(short)0);
+            int r = LIBC.poll(pollfd,1,(int)Math.min(remaining,Integer.MAX_VALUE));
+            if(r<0) {
+                int err = Native.getLastError();
+                if(err!=EINTR)
+                    return "poll failed: "+LIBC.strerror(err);
+            }
+            if(r<=0)
+                continue;   // timeout or EINTR
+
+            int n = LIBC.read(fd,buf,buf.length);
+            if(n<0)
+                continue;
+            for( int j=0; j<n; j++ ) {
+                if(buf[j]=='\n')
+                    return decode(line.toByteArray());
+                line.write(buf[j]);
+            }
+            if(n==0) {
+                // EOF
+                if(line.size()>0)
+                    return decode(line.toByteArray());
+                return "exited before it became ready";
+            }
+        }
+    }
+
+    private static String decode(byte[] line) {
+        try {
+            return new String(line,"UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Tells the process that launched this daemon that the daemon is ready to serve,
+     * which lets {@link #daemonize(JavaVMArguments)} return in there.
+     *
+     * <p>
+     * This is a no-op if the launching process isn't waiting, or if it's already been notified.
+     */
+    public static void notifyReady() {
+        notifyLauncher(READY);
+    }
+
+    /**
+     * Tells the process that launched this daemon that the daemon has failed to start,
+     * which makes the launching process exit with the given reason.
+     *
+     * <p>
+     * This is a no-op if the launching process isn't waiting, or if it's already been notified.
+     * Otherwise the caller is expected to terminate the daemon, as it's been reported to have failed.
+     *
+     * @return
+     *      true if the launching process has been notified.
+     */
+    public static boolean notifyFailure(String reason) {
+        return notifyLauncher(FAILED+reason.replace('\n',' '));
+    }
+
+    private static synchronized boolean notifyLauncher(String status) {
+        int fd = getReadyFd();
+        if(fd<0)    return false;
+        System.clearProperty(READY_FD_PROPERTY);
+        try {
+            byte[] b = (status+"\n").getBytes("UTF-8");
+            if(LIBC.write(fd,b,b.length)<0)
+                LOGGER.fine("Failed to notify the launcher: "+LIBC.strerror(Native.getLastError()));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        } finally {
+            LIBC.close(fd);
+        }
+        return true;
+    }
+
+    /**
+     * File descriptor of the write end of the readiness pipe, or -1 if the launcher isn't waiting.
+     */
+    private static int getReadyFd() {
+        return Integer.getInteger(READY_FD_PROPERTY,-1);
+    }
+
+    /**
+     * Determines how the new JVM is launched from {@link #daemonize(JavaVMArguments)}.
+     *
+     * <p>
+     * This method can be overridden to always use a specific strategy.
+     */
+    protected SpawnStrategy getSpawnStrategy() {
+        return SpawnStrategy.getDefault();
+    }
+
     /**
      * Overwrites the current process with a new Java VM with the given JVM arguments.
      */
@@ -171,6 +345,10 @@ public class Daemon {
         // start a new process session
         LIBC.setsid();
 
+        // processes we launch shouldn't keep the launcher waiting when we die
+        if(getReadyFd()>=0)
+            LIBC.fcntl(getReadyFd(),F_SETFD,FD_CLOEXEC);
+
         closeDescriptors();
 
         chdirToRoot();
@@ -181,6 +359,10 @@ public class Daemon {
      * Closes inherited file descriptors.
      *
      * <p>
+     * {@link #daemonize(JavaVMArguments)} already launched this process without any descriptors
+     * other than stdin, stdout, stderr, and the readiness pipe, so this only needs to close the standard ones.
+     *
+     * <p>
      * This method can be overridden to no-op in a subtype. Useful for debugging daemon processes
      * when they don't work correctly.
      */
@@ -190,9 +372,6 @@ public class Daemon {
             System.err.close();
             System.in.close();
         }
-
-        // ideally we'd like to close all other descriptors, but that would close
-        // jar files used as classpath, and break JVM.
     }
 
     /**
@@ -238,7 +417,7 @@ public class Daemon {
         return System.getProperty("java.home")+"/bin/java";
     }
 
-    private static String resolveSymlink(File link) throws IOException {
+    /*package*/ static String resolveSymlink(File link) throws IOException {
         String filename = link.getAbsolutePath();
 
         for (int sz=512; sz < 65536; sz*=2) {
@@ -276,5 +455,18 @@ public class Daemon {
         }
     }
 
+    private SharedArchive sharedArchive;
+
     private static final Logger LOGGER = Logger.getLogger(Daemon.class.getName());
+
+    /**
+     * System property that tells the daemon the file descriptor of the readiness pipe.
+     */
+    /*package*/ static final String READY_FD_PROPERTY = Daemon.class.getName()+".readyFd";
+    private static final String READY = "READY";
+    private static final String FAILED = "FAILED ";
+    private static final int F_SETFD = 2;
+    private static final int FD_CLOEXEC = 1;
+    private static final short POLLIN = 1;
+    private static final int EINTR = 4;
 }
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+
+import com.sun.jna.Native;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Connections that the frontend of a {@link NetworkServer} dispatches to this worker,
+ * when {@link NetworkServer#isDispatch()} is true.
+ *
+ * <p>
+ * The frontend accepts connections itself and passes them to the least loaded worker,
+ * instead of letting all the workers race for them. See {@link NetworkServer#worker(DispatchQueue)}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class DispatchQueue {
+    private final int fd;
+    private final Dispatcher.Message message = new Dispatcher.Message();
+
+    /*package*/ DispatchQueue(int fd) {
+        this.fd = fd;
+    }
+
+    /**
+     * Waits for the next connection.
+     *
+     * @return
+     *      null once the frontend stops sending connections to this worker,
+     *      for example because it's being replaced.
+     */
+    public synchronized SocketChannel take() throws IOException {
+        while(true) {
+            int s = message.receive(fd);
+            if(s==0)
+                return null;
+            if(s==Dispatcher.Message.NO_DESCRIPTOR) {
+                LOGGER.warning("Lost a dispatched connection, as its descriptor couldn't be received. Out of file descriptors?");
+                continue;
+            }
+            if(s<0) {
+                int err = Native.getLastError();
+                if(err==EINTR)  continue;
+                throw new IOException("Failed to receive a connection: "+LIBC.strerror(err));
+            }
+            try {
+                return FileDescriptors.toSocketChannel(s);
+            } catch (IOException e) {
+                LIBC.close(s);
+                throw e;
+            }
+        }
+    }
+
+    private static final int EINTR = 4;
+
+    private static final Logger LOGGER = Logger.getLogger(DispatchQueue.class.getName());
+}
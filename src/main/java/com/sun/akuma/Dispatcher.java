@@ -0,0 +1,291 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Accepts connections in the frontend, and hands each of them to the least loaded worker.
+ *
+ * <p>
+ * Every worker gets one end of a Unix domain socket pair as its stdin, and connections are passed
+ * through it as <tt>SCM_RIGHTS</tt> messages, which the worker receives with {@link DispatchQueue}.
+ * The load of a worker is the number of connections it's serving according to the {@link Scoreboard},
+ * plus the ones that have been sent to it but not picked up yet.
+ *
+ * <p>
+ * Everything here works on raw file descriptors, so that connections never become Java objects in the frontend.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+/*package*/ final class Dispatcher {
+    private final Scoreboard scoreboard;
+
+    /**
+     * Frontend end of the socket pair of each slot, or -1.
+     */
+    private final int[] channels;
+
+    /**
+     * Number of connections sent to each slot since its worker was launched.
+     */
+    private final long[] sent;
+
+    /**
+     * Message buffer for <tt>sendmsg</tt>, reused under the lock.
+     */
+    private final Message message = new Message();
+
+    private volatile boolean stopped;
+
+    /*package*/ Dispatcher(Scoreboard scoreboard) {
+        this.scoreboard = scoreboard;
+        this.channels = new int[scoreboard.size()];
+        this.sent = new long[scoreboard.size()];
+        Arrays.fill(channels,-1);
+    }
+
+    /**
+     * Creates the socket pair for a new worker in the given slot.
+     *
+     * @return
+     *      The worker end, which the caller passes to the new worker as stdin and then closes.
+     */
+    /*package*/ synchronized int open(int slot) {
+        close(slot);
+        int[] sv = new int[2];
+        if(LIBC.socketpair(AF_UNIX,SOCK_SEQPACKET|SOCK_CLOEXEC,0,sv)!=0)
+            throw new IllegalStateException("socketpair failed: "+LIBC.strerror(Native.getLastError()));
+        channels[slot] = sv[0];
+        sent[slot] = 0;
+        return sv[1];
+    }
+
+    /**
+     * Stops sending connections to the given slot. The worker sees EOF once it has picked up the ones already sent.
+     */
+    /*package*/ synchronized void close(int slot) {
+        if(channels[slot]>=0) {
+            LIBC.close(channels[slot]);
+            channels[slot] = -1;
+        }
+    }
+
+    /**
+     * Starts accepting connections from the given listening sockets, each on its own thread.
+     */
+    /*package*/ void start(List<Integer> listeners) {
+        for (final int fd : listeners) {
+            Thread t = new Thread("Dispatcher for fd "+fd) {
+                @Override
+                public void run() {
+                    acceptLoop(fd);
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections. The listening sockets need to be shut down to wake up the threads blocked in accept.
+     */
+    /*package*/ void stop() {
+        stopped = true;
+    }
+
+    private void acceptLoop(int listener) {
+        while(true) {
+            int fd = LIBC.accept4(listener,null,null,SOCK_CLOEXEC);
+            if(stopped) {
+                if(fd>=0)   LIBC.close(fd);
+                return;
+            }
+            if(fd<0) {
+                int err = Native.getLastError();
+                LOGGER.fine("accept failed: "+LIBC.strerror(err));
+                if(err==EMFILE || err==ENFILE || err==ENOBUFS || err==ENOMEM) {
+                    // out of resources. let the workers catch up
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            dispatch(fd);
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Sends the connection to the least loaded worker.
+     */
+    private synchronized void dispatch(int fd) {
+        // workers that can't take it get excluded one by one
+        boolean[] excluded = new boolean[channels.length];
+        while(true) {
+            int best = -1;
+            long bestLoad = Long.MAX_VALUE;
+            boolean bestReady = false;
+            for( int i=0; i<channels.length; i++ ) {
+                if(channels[i]<0 || excluded[i])
+                    continue;
+                Scoreboard.Slot s = scoreboard.get(i);
+                Scoreboard.State st = s.getState();
+                boolean ready = st==Scoreboard.State.IDLE || st==Scoreboard.State.BUSY;
+                long load = s.getActive() + Math.max(0,sent[i]-s.getAccepted());
+                // prefer workers that are ready, then the ones with the least load
+                if(best<0 || (ready && !bestReady) || (ready==bestReady && load<bestLoad)) {
+                    best = i;
+                    bestLoad = load;
+                    bestReady = ready;
+                }
+            }
+            if(best<0) {
+                LOGGER.warning("No worker to dispatch a connection to. Dropping it");
+                return;
+            }
+
+            if(message.send(channels[best],fd)) {
+                sent[best]++;
+                return;
+            }
+            int err = Native.getLastError();
+            if(err!=EAGAIN) {
+                // the worker is gone
+                LOGGER.log(Level.FINE, "Failed to dispatch to worker #"+best+": "+LIBC.strerror(err));
+                close(best);
+            }
+            excluded[best] = true;
+        }
+    }
+
+    /**
+     * <tt>struct msghdr</tt> that carries one file descriptor, and one byte of payload as required by the kernel.
+     * Shared with {@link DispatchQueue}.
+     */
+    /*package*/ static final class Message {
+        private final Memory msghdr = new Memory(7*P);
+        private final Memory iov = new Memory(2*P);
+        private final Memory payload = new Memory(1);
+        private final Memory control = new Memory(CMSG_SPACE);
+
+        Message() {
+            msghdr.clear();
+            iov.setPointer(0,payload);
+            setSize(iov,P,1);
+            msghdr.setPointer(2*P,iov);
+            setSize(msghdr,3*P,1);
+            msghdr.setPointer(4*P,control);
+        }
+
+        boolean send(int channel, int fd) {
+            control.clear();
+            setSize(control,0,CMSG_LEN);
+            control.setInt(P,SOL_SOCKET);
+            control.setInt(P+4,SCM_RIGHTS);
+            control.setInt(P+8,fd);
+            setSize(msghdr,5*P,CMSG_SPACE);
+            payload.setByte(0,(byte)0);
+            return LIBC.sendmsg(channel,msghdr,MSG_DONTWAIT|MSG_NOSIGNAL).longValue()>0;
+        }
+
+        /**
+         * @return
+         *      the received file descriptor, 0 on EOF, -1 on error, or {@link #NO_DESCRIPTOR}.
+         */
+        int receive(int channel) {
+            control.clear();
+            setSize(msghdr,5*P,CMSG_SPACE);
+            msghdr.setInt(6*P,0);
+            long n = LIBC.recvmsg(channel,msghdr,MSG_CMSG_CLOEXEC).longValue();
+            if(n<=0)
+                return (int)n;
+            boolean hasDescriptor = getSize(control,0)>=CMSG_LEN && control.getInt(P)==SOL_SOCKET && control.getInt(P+4)==SCM_RIGHTS;
+            if((msghdr.getInt(6*P)&MSG_CTRUNC)!=0) {
+                // the kernel couldn't install the descriptor, typically because we are at the descriptor limit
+                if(hasDescriptor)
+                    LIBC.close(control.getInt(P+8));
+                return NO_DESCRIPTOR;
+            }
+            if(!hasDescriptor)
+                return NO_DESCRIPTOR;
+            return control.getInt(P+8);
+        }
+
+        /**
+         * Returned by {@link #receive(int)} when a message arrived without its descriptor, which means
+         * the connection was lost, but the channel itself is fine.
+         */
+        static final int NO_DESCRIPTOR = -2;
+
+        private static void setSize(Pointer p, long offset, long value) {
+            if(P==8)    p.setLong(offset,value);
+            else        p.setInt(offset,(int)value);
+        }
+
+        private static long getSize(Pointer p, long offset) {
+            return P==8 ? p.getLong(offset) : p.getInt(offset);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Dispatcher.class.getName());
+
+    /**
+     * Size of pointers and <tt>size_t</tt>, which determines the layout of <tt>msghdr</tt> and <tt>cmsghdr</tt>.
+     */
+    private static final int P = Native.POINTER_SIZE;
+    /**
+     * <tt>CMSG_LEN(sizeof(int))</tt> and <tt>CMSG_SPACE(sizeof(int))</tt>.
+     */
+    private static final int CMSG_LEN = P+8+4;
+    private static final int CMSG_SPACE = P+8+P;
+
+    // these values are Linux specific
+    private static final int AF_UNIX = 1;
+    private static final int SOCK_SEQPACKET = 5;
+    private static final int SOCK_CLOEXEC = 0x80000;
+    private static final int SOL_SOCKET = 1;
+    private static final int SCM_RIGHTS = 1;
+    private static final int MSG_DONTWAIT = 0x40;
+    private static final int MSG_NOSIGNAL = 0x4000;
+    private static final int MSG_CMSG_CLOEXEC = 0x40000000;
+    private static final int MSG_CTRUNC = 0x8;
+    private static final int EAGAIN = 11;
+    private static final int ENFILE = 23;
+    private static final int EMFILE = 24;
+    private static final int ENOBUFS = 105;
+    private static final int ENOMEM = 12;
+}
@@ -23,10 +23,14 @@
  */
 package com.sun.akuma;
 
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import static com.sun.akuma.CLibrary.LIBC;
 
@@ -60,33 +64,57 @@ public class EchoServer extends NetworkServer {
 
     @Override
     protected void forkWorkers(JavaVMArguments args) throws Exception {
-        // TODO: parse arguments and decide how many to fork
-        forkWorkerThreads(args, 2);
+        // start small, and grow up to one worker per core of the container as connections come in
+        forkWorkerThreads(args, 1, Math.max(2, getContainerLimits().getWorkerCount()));
     }
 
     @Override
     protected ServerSocket createServerSocket() throws Exception {
         System.out.println("Listening on port 12345");
         // TODO: parse arguments and decide port
-        return new ServerSocket(12345);
+        return openServerSocket(new InetSocketAddress(12345));
     }
 
+    /**
+     * Also listen on a Unix domain socket, if its path is given as the
+     * <tt>com.sun.akuma.EchoServer.unix</tt> system property.
+     */
     @Override
-    protected void worker(ServerSocket ss) throws Exception {
-        byte[] buf = new byte[1024];
-        // run a simple echo server
-        while(true) {
-            Socket s = ss.accept();
-            System.out.println("PID:"+ LIBC.getpid()+" accepted a new connection");
+    protected List<ServerSocketChannel> createListeners() throws Exception {
+        String path = System.getProperty(EchoServer.class.getName()+".unix");
+        if(path==null || isReusePort())
+            return null;
+        System.out.println("Listening on port 12345 and "+path);
+        return Arrays.asList(openServerSocket(new InetSocketAddress(12345)).getChannel(), openUnixServerSocket(path));
+    }
 
-            InputStream in = s.getInputStream();
-            OutputStream out = s.getOutputStream();
+    @Override
+    protected void worker(ServerSocketChannel channel) throws Exception {
+        worker(Collections.singletonList(channel));
+    }
 
-            int len;
-            while((len=in.read(buf))>=0)
-                out.write(buf,0,len);
+    @Override
+    protected void worker(List<ServerSocketChannel> channels) throws Exception {
+        createReactor().run(channels);
+    }
+
+    @Override
+    protected void worker(DispatchQueue connections) throws Exception {
+        createReactor().run(connections);
+    }
+
+    private Reactor createReactor() {
+        // run a simple echo server
+        return new Reactor() {
+            @Override
+            protected void onOpen(Connection c) {
+                System.out.println("PID:"+ LIBC.getpid()+" accepted a new connection");
+            }
 
-            s.close();
-        }
+            @Override
+            protected void onRead(Connection c, ByteBuffer in) throws IOException {
+                c.write(in);
+            }
+        };
     }
 }
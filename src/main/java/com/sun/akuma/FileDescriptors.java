@@ -0,0 +1,492 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.ptr.IntByReference;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.SocketImpl;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Determines the Unix file descriptor numbers behind Java objects.
+ *
+ * <p>
+ * Java doesn't expose them, so we first try to peek into the JDK internals. Newer JDKs
+ * don't allow that unless <tt>--add-opens</tt> is given, so on Linux we then fall back
+ * to finding the socket by its inode through <tt>/proc</tt>.
+ *
+ * <p>
+ * This class also lists and closes descriptors of the current process in bulk.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+/*package*/ final class FileDescriptors {
+    private FileDescriptors() {}
+
+    /**
+     * Determines the Unix file descriptor number of the given {@link ServerSocket}.
+     */
+    static int of(ServerSocket ss) throws IOException {
+        try {
+            ServerSocketChannel ch = ss.getChannel();
+            if(ch!=null) {
+                Field $fdVal = ch.getClass().getDeclaredField("fdVal");
+                $fdVal.setAccessible(true);
+                return (Integer)$fdVal.get(ch);
+            }
+
+            Field $impl = ServerSocket.class.getDeclaredField("impl");
+            $impl.setAccessible(true);
+            SocketImpl socketImpl = (SocketImpl)$impl.get(ss);
+            Method $getFileDescriptor = SocketImpl.class.getDeclaredMethod("getFileDescriptor");
+            $getFileDescriptor.setAccessible(true);
+            FileDescriptor fd = (FileDescriptor) $getFileDescriptor.invoke(socketImpl);
+            Field $fd = FileDescriptor.class.getDeclaredField("fd");
+            $fd.setAccessible(true);
+            return (Integer)$fd.get(fd);
+        } catch (Exception e) {
+            // on JDK 16 and later, this fails with InaccessibleObjectException
+            LOGGER.log(Level.FINE, "Failed to reflect into "+ss, e);
+        }
+
+        if(!ss.isBound())
+            throw new IOException("Unable to determine the file descriptor of an unbound socket");
+        return ofListeningPort(ss.getLocalPort());
+    }
+
+    /**
+     * Determines the Unix file descriptor number of the given listening channel,
+     * which can be a Unix domain socket.
+     */
+    static int of(ServerSocketChannel ch) throws IOException {
+        try {
+            Field $fdVal = ch.getClass().getDeclaredField("fdVal");
+            $fdVal.setAccessible(true);
+            return (Integer)$fdVal.get(ch);
+        } catch (Exception e) {
+            LOGGER.log(Level.FINE, "Failed to reflect into "+ch, e);
+        }
+
+        SocketAddress local = ch.getLocalAddress();
+        if(local==null)
+            throw new IOException("Unable to determine the file descriptor of an unbound socket");
+        if(local instanceof InetSocketAddress)
+            return ofListeningPort(((InetSocketAddress)local).getPort());
+        // UnixDomainSocketAddress, whose string representation is the path
+        return ofUnixSocket(local.toString());
+    }
+
+    private static int ofUnixSocket(String path) throws IOException {
+        Set<String> inodes = new HashSet<String>();
+        File f = new File("/proc/net/unix");
+        if(f.exists()) {
+            BufferedReader r = new BufferedReader(new FileReader(f));
+            try {
+                r.readLine();   // header
+                String line;
+                while((line=r.readLine())!=null) {
+                    // Num RefCount Protocol Flags Type St Inode Path
+                    String[] tokens = line.trim().split("\\s+");
+                    if(tokens.length>=8 && tokens[3].equals(UNIX_LISTEN) && tokens[7].equals(path))
+                        inodes.add("socket:["+tokens[6]+"]");
+                }
+            } finally {
+                r.close();
+            }
+        }
+
+        if(!inodes.isEmpty()) {
+            for (Map.Entry<Integer,String> e : listOpen().entrySet())
+                if(inodes.contains(e.getValue()))
+                    return e.getKey();
+        }
+        throw new IOException("Unable to find the file descriptor listening on "+path);
+    }
+
+    /**
+     * Creates a channel for a listening socket inherited from another process.
+     *
+     * <p>
+     * Java only lets us do this for stdin through {@link System#inheritedChannel()}, so this peeks into
+     * the JDK internals. On JDK 16 and later, that requires
+     * <tt>--add-opens=java.base/sun.nio.ch=ALL-UNNAMED</tt>.
+     */
+    static ServerSocketChannel toServerSocketChannel(int fd) throws IOException {
+        try {
+            Method $newFD = Class.forName("sun.nio.ch.IOUtil").getDeclaredMethod("newFD",int.class);
+            $newFD.setAccessible(true);
+            FileDescriptor fdObj = (FileDescriptor)$newFD.invoke(null,fd);
+
+            Class<?> impl = Class.forName("sun.nio.ch.ServerSocketChannelImpl");
+            SelectorProvider provider = SelectorProvider.provider();
+            try {
+                Constructor<?> c = impl.getDeclaredConstructor(SelectorProvider.class,ProtocolFamily.class,FileDescriptor.class,boolean.class);
+                c.setAccessible(true);
+                return (ServerSocketChannel)c.newInstance(provider,familyOf(fd),fdObj,true);
+            } catch (NoSuchMethodException e) {
+                // before JDK 16, which only supports IP sockets
+                Constructor<?> c = impl.getDeclaredConstructor(SelectorProvider.class,FileDescriptor.class,boolean.class);
+                c.setAccessible(true);
+                return (ServerSocketChannel)c.newInstance(provider,fdObj,true);
+            }
+        } catch (InvocationTargetException e) {
+            throw (IOException)new IOException("Failed to create a channel for the file descriptor "+fd).initCause(e.getCause());
+        } catch (Exception e) {
+            throw (IOException)new IOException("Unable to create a channel for the file descriptor "+fd
+                    +". Is --add-opens=java.base/sun.nio.ch=ALL-UNNAMED missing?").initCause(e);
+        }
+    }
+
+    /**
+     * Creates a channel for a connected socket received from another process.
+     * Like {@link #toServerSocketChannel(int)}, this peeks into the JDK internals.
+     */
+    static SocketChannel toSocketChannel(int fd) throws IOException {
+        try {
+            Method $newFD = Class.forName("sun.nio.ch.IOUtil").getDeclaredMethod("newFD",int.class);
+            $newFD.setAccessible(true);
+            FileDescriptor fdObj = (FileDescriptor)$newFD.invoke(null,fd);
+
+            Class<?> impl = Class.forName("sun.nio.ch.SocketChannelImpl");
+            SelectorProvider provider = SelectorProvider.provider();
+            try {
+                Constructor<?> c = impl.getDeclaredConstructor(SelectorProvider.class,ProtocolFamily.class,FileDescriptor.class,SocketAddress.class);
+                c.setAccessible(true);
+                return (SocketChannel)c.newInstance(provider,familyOf(fd),fdObj,peerOf(fd));
+            } catch (NoSuchMethodException e) {
+                // before JDK 16
+                Constructor<?> c = impl.getDeclaredConstructor(SelectorProvider.class,FileDescriptor.class,InetSocketAddress.class);
+                c.setAccessible(true);
+                return (SocketChannel)c.newInstance(provider,fdObj,peerOf(fd));
+            }
+        } catch (InvocationTargetException e) {
+            throw (IOException)new IOException("Failed to create a channel for the file descriptor "+fd).initCause(e.getCause());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw (IOException)new IOException("Unable to create a channel for the file descriptor "+fd
+                    +". Is --add-opens=java.base/sun.nio.ch=ALL-UNNAMED missing?").initCause(e);
+        }
+    }
+
+    /**
+     * Determines the remote address of a connected IP socket.
+     *
+     * @return
+     *      null if the peer has already reset the connection, in which case the channel
+     *      fails on its first use like any other connection that the peer resets.
+     */
+    private static InetSocketAddress peerOf(int fd) throws IOException {
+        Memory addr = new Memory(128);
+        IntByReference len = new IntByReference(128);
+        if(LIBC.getpeername(fd,addr,len)!=0) {
+            int err = Native.getLastError();
+            if(err==ENOTCONN)
+                return null;
+            throw new IOException("getpeername failed on "+fd+": "+LIBC.strerror(err));
+        }
+        // sockaddr_in and sockaddr_in6 both have the port in the network byte order at the same place
+        int port = ((addr.getByte(2)&0xFF)<<8) | (addr.getByte(3)&0xFF);
+        byte[] ip;
+        switch (addr.getShort(0)) {
+        case AF_INET:   ip = addr.getByteArray(4,4);    break;
+        case AF_INET6:  ip = addr.getByteArray(8,16);   break;
+        default:        return null;    // Unix domain sockets aren't supported before JDK 16 anyway
+        }
+        return new InetSocketAddress(InetAddress.getByAddress(ip),port);
+    }
+
+    private static ProtocolFamily familyOf(int fd) throws IOException {
+        Memory addr = new Memory(128);
+        IntByReference len = new IntByReference(128);
+        if(LIBC.getsockname(fd,addr,len)!=0)
+            throw new IOException("getsockname failed on "+fd+": "+LIBC.strerror(Native.getLastError()));
+        switch (addr.getShort(0)) {
+        case AF_UNIX:   return StandardProtocolFamily.valueOf("UNIX");
+        case AF_INET:   return StandardProtocolFamily.INET;
+        case AF_INET6:  return StandardProtocolFamily.INET6;
+        default:        throw new IOException("Unexpected address family "+addr.getShort(0)+" of "+fd);
+        }
+    }
+
+    /**
+     * Finds the file descriptor of the current process that is listening on the given TCP port, by
+     * matching the socket inode in <tt>/proc/net/tcp</tt> against the links in <tt>/proc/self/fd</tt>.
+     */
+    private static int ofListeningPort(int port) throws IOException {
+        Set<String> inodes = new HashSet<String>();
+        for (String[] tokens : listeningSockets(port))
+            inodes.add("socket:["+tokens[9]+"]");
+
+        if(!inodes.isEmpty()) {
+            for (Map.Entry<Integer,String> e : listOpen().entrySet())
+                if(inodes.contains(e.getValue()))
+                    return e.getKey();
+        }
+        throw new IOException("Unable to find the file descriptor listening on port "+port);
+    }
+
+    /**
+     * Finds the TCP sockets listening on the given port from <tt>/proc/net/tcp</tt> and <tt>/proc/net/tcp6</tt>.
+     *
+     * @return
+     *      the entries split into fields: "sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ...".
+     *      Empty if there's none, or if the platform doesn't have these files.
+     */
+    static List<String[]> listeningSockets(int port) throws IOException {
+        List<String[]> r = new ArrayList<String[]>();
+        for (String table : new String[]{"/proc/net/tcp","/proc/net/tcp6"}) {
+            File f = new File(table);
+            if(!f.exists())     continue;
+            BufferedReader in = new BufferedReader(new FileReader(f));
+            try {
+                in.readLine();   // header
+                String line;
+                while((line=in.readLine())!=null) {
+                    String[] tokens = line.trim().split("\\s+");
+                    if(tokens.length<10 || !tokens[3].equals(TCP_LISTEN))
+                        continue;
+                    String local = tokens[1];
+                    if(Integer.parseInt(local.substring(local.indexOf(':')+1),16)==port)
+                        r.add(tokens);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return r;
+    }
+
+    /**
+     * Lists the file descriptors open in this process, with what they refer to,
+     * such as a file name or "socket:[1234]".
+     *
+     * @return
+     *      empty if the platform doesn't have <tt>/proc/self/fd</tt>. The value is null
+     *      for a descriptor that was closed while it was being listed.
+     */
+    static SortedMap<Integer,String> listOpen() {
+        SortedMap<Integer,String> r = new TreeMap<Integer,String>();
+        File[] fds = new File("/proc/self/fd").listFiles();
+        if(fds==null)   return r;
+        for (File fd : fds) {
+            String target;
+            try {
+                target = Daemon.resolveSymlink(fd);
+            } catch (IOException e) {
+                target = null;  // the descriptor was closed in the mean time
+            }
+            r.put(Integer.parseInt(fd.getName()),target);
+        }
+        return r;
+    }
+
+    /**
+     * Computes the descriptors above stderr other than the given ones, for a new process that shouldn't
+     * inherit anything else. See {@link SpawnStrategy#spawn(String, JavaVMArguments, int, int[])}.
+     *
+     * @return
+     *      ranges of descriptors as pairs of the first and the last one, inclusive.
+     */
+    static int[] rangesExcept(int[] keep) {
+        int[] sorted = keep.clone();
+        Arrays.sort(sorted);
+        int[] r = new int[(sorted.length+1)*2];
+        int n = 0;
+        int first = 3;
+        for (int fd : sorted) {
+            if(fd<first)    continue;   // stdio, or a duplicate
+            if(fd>first) {
+                r[n++] = first;
+                r[n++] = fd-1;
+            }
+            first = fd+1;
+        }
+        r[n++] = first;
+        r[n++] = Integer.MAX_VALUE;     // up to the last one that can possibly be open
+        return Arrays.copyOf(r,n);
+    }
+
+    /**
+     * Looks up what {@link #closeRanges(int[])} needs, so that it doesn't have to in the forked child.
+     */
+    static void prepareCloseRanges() {
+        if(maxFd<0)
+            maxFd = (int)Math.min(LIBC.sysconf(_SC_OPEN_MAX).longValue(),Integer.MAX_VALUE);
+        if(hasCloseRange) {
+            try {
+                LIBC.close_range(1,0,0);  // fails with EINVAL, but binds the function
+            } catch (UnsatisfiedLinkError e) {
+                // older C library
+                LOGGER.log(Level.FINE, "close_range is unavailable", e);
+                hasCloseRange = false;
+            }
+        }
+    }
+
+    /**
+     * Closes the given ranges of descriptors with <tt>close_range</tt>, or one by one
+     * if the kernel doesn't support it.
+     *
+     * <p>
+     * This runs in the child between <tt>fork</tt> and <tt>exec</tt>, so it neither allocates nor logs.
+     * Call {@link #prepareCloseRanges()} before forking.
+     */
+    static void closeRanges(int[] ranges) {
+        for( int i=0; i<ranges.length; i+=2 ) {
+            if(hasCloseRange && LIBC.close_range(ranges[i],ranges[i+1],0)==0)
+                continue;
+            // ENOSYS on older kernels
+            for( int fd=ranges[i]; fd<=ranges[i+1] && fd<maxFd; fd++ )
+                LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Sets <tt>FD_CLOEXEC</tt> on the given ranges of descriptors, so that a process launched
+     * without running any code of ours in between, like with <tt>posix_spawn</tt>, doesn't inherit them.
+     * This process keeps them open.
+     */
+    static void setCloseOnExec(int[] ranges) {
+        if(hasCloseRange) {
+            try {
+                boolean done = true;
+                for( int i=0; i<ranges.length; i+=2 )
+                    done &= LIBC.close_range(ranges[i],ranges[i+1],CLOSE_RANGE_CLOEXEC)==0;
+                if(done)
+                    return;
+                // EINVAL before Linux 5.11, ENOSYS before 5.9
+                LOGGER.fine("close_range failed: "+LIBC.strerror(Native.getLastError()));
+            } catch (UnsatisfiedLinkError e) {
+                // older C library
+                LOGGER.log(Level.FINE, "close_range is unavailable", e);
+                hasCloseRange = false;
+            }
+        }
+
+        for (int fd : listOpen().keySet())
+            for( int i=0; i<ranges.length; i+=2 )
+                if(ranges[i]<=fd && fd<=ranges[i+1])
+                    LIBC.fcntl(fd,F_SETFD,FD_CLOEXEC);
+    }
+
+    /**
+     * Deletes the Unix domain socket file at the given path if the process that created it is gone,
+     * so that the path can be bound again. Anything other than a socket is left alone, so that binding fails on it.
+     *
+     * @throws IOException
+     *      if a process is still accepting connections on the socket.
+     */
+    static void deleteStaleSocket(File f) throws IOException {
+        int mode;
+        try {
+            mode = (Integer)Files.getAttribute(f.toPath(),"unix:mode",LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if((mode&S_IFMT)!=S_IFSOCK)
+            return;
+
+        byte[] name = f.getPath().getBytes(JavaVMArguments.NATIVE_ENCODING);
+        Memory addr = new Memory(2+name.length+1);
+        addr.clear();
+        addr.setShort(0,AF_UNIX);
+        addr.write(2,name,0,name.length);
+
+        int fd = LIBC.socket(AF_UNIX,SOCK_STREAM|SOCK_CLOEXEC,0);
+        if(fd<0)
+            throw new IOException("Failed to create a socket: "+LIBC.strerror(Native.getLastError()));
+        int r = LIBC.connect(fd,addr,(int)addr.size());
+        int err = Native.getLastError();
+        LIBC.close(fd);
+        if(r==0)
+            throw new IOException(f+" is in use by another process");
+        if(err==ECONNREFUSED) {
+            LOGGER.fine("Deleting the stale socket "+f);
+            f.delete();
+        }
+    }
+
+    private static volatile boolean hasCloseRange = true;
+    /**
+     * Upper bound of the descriptors, to close them one by one without <tt>close_range</tt>.
+     */
+    private static volatile int maxFd = -1;
+
+    private static final String TCP_LISTEN = "0A";
+    /**
+     * __SO_ACCEPTCON in the flags of <tt>/proc/net/unix</tt>.
+     */
+    private static final String UNIX_LISTEN = "00010000";
+    // these values are Linux specific
+    private static final short AF_UNIX = 1;
+    private static final short AF_INET = 2;
+    private static final short AF_INET6 = 10;
+    private static final int SOCK_STREAM = 1;
+    private static final int SOCK_CLOEXEC = 0x80000;
+    private static final int ECONNREFUSED = 111;
+    private static final int ENOTCONN = 107;
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+    private static final int _SC_OPEN_MAX = 4;
+    private static final int CLOSE_RANGE_CLOEXEC = 4;
+    private static final int F_SETFD = 2;
+    private static final int FD_CLOEXEC = 1;
+
+    private static final Logger LOGGER = Logger.getLogger(FileDescriptors.class.getName());
+}
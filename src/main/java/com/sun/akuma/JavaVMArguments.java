@@ -81,15 +81,162 @@ public class JavaVMArguments extends ArrayList<String> {
         removeAll(subList(size()-n,size()));
     }
 
-    /*package*/ StringArray toStringArray() {
+    /**
+     * Converts this into the <tt>argv</tt> array that <tt>execv</tt> and <tt>posix_spawn</tt> take,
+     * for implementing {@link SpawnStrategy}.
+     */
+    public StringArray toStringArray() {
         return new StringArray(toArray(new String[size()]));
     }
 
+    /**
+     * Creates an immutable snapshot of the current contents of this list.
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(toArray(new String[size()]));
+    }
+
     /**
      * Gets the process argument list of the current process.
      */
     public static JavaVMArguments current() throws IOException {
-        return of(-1);
+        return currentSnapshot().toArguments();
+    }
+
+    /**
+     * Gets the process argument list of the current process as an immutable snapshot.
+     *
+     * <p>
+     * The arguments of a process never change once it's started, so they are only obtained
+     * from the operating system the first time this method is called.
+     */
+    public static Snapshot currentSnapshot() throws IOException {
+        Snapshot s = current;
+        if(s==null)
+            current = s = of(-1).snapshot();
+        return s;
+    }
+
+    private static volatile Snapshot current;
+
+    /**
+     * Immutable list of arguments, with its system properties indexed.
+     *
+     * <p>
+     * Deriving a snapshot with different system properties doesn't copy the arguments. The derived
+     * snapshot shares the arguments and the index with the original, and only records its own
+     * overrides. The overrides are applied in a single pass when the arguments are materialized.
+     * This is how {@link NetworkServer} prepares the arguments of each worker from the same template.
+     */
+    public static final class Snapshot {
+        private final String[] args;
+        /**
+         * Position of the last occurrence of each system property in {@link #args}, which is the one the JVM uses.
+         */
+        private final Map<String,Integer> index;
+        /**
+         * System properties to set on top of {@link #args}, in the order they were set.
+         * Null values designate removed properties.
+         */
+        private final Map<String,String> overrides;
+
+        private Snapshot(String[] args) {
+            this.args = args;
+            this.index = new HashMap<String,Integer>();
+            for( int i=1; i<args.length; i++ ) {
+                String name = propertyName(args[i]);
+                if(name!=null)
+                    index.put(name,i);
+            }
+            this.overrides = Collections.emptyMap();
+        }
+
+        private Snapshot(Snapshot base, String name, String value) {
+            this.args = base.args;
+            this.index = base.index;
+            this.overrides = new LinkedHashMap<String,String>(base.overrides);
+            this.overrides.remove(name);    // so that the new value goes to the end of the order
+            this.overrides.put(name,value);
+        }
+
+        /**
+         * Gets the value of the given system property, or null if it's not set.
+         */
+        public String getSystemProperty(String name) {
+            if(overrides.containsKey(name))
+                return overrides.get(name);
+            Integer i = index.get(name);
+            if(i==null)     return null;
+            String arg = args[i];
+            int eq = arg.indexOf('=');
+            return eq<0 ? "" : arg.substring(eq+1);
+        }
+
+        /**
+         * Derives a snapshot that has the given system property set,
+         * just like {@link JavaVMArguments#setSystemProperty(String, String)} does.
+         */
+        public Snapshot withSystemProperty(String name, String value) {
+            if(value==null)
+                throw new IllegalArgumentException("No value given for "+name);
+            return new Snapshot(this,name,value);
+        }
+
+        /**
+         * Derives a snapshot that doesn't have the given system property,
+         * just like {@link JavaVMArguments#removeSystemProperty(String)} does.
+         */
+        public Snapshot withoutSystemProperty(String name) {
+            return new Snapshot(this,name,null);
+        }
+
+        /**
+         * Creates a new mutable list of the arguments.
+         */
+        public JavaVMArguments toArguments() {
+            return new JavaVMArguments(Arrays.asList(materialize()));
+        }
+
+        private String[] materialize() {
+            if(overrides.isEmpty())
+                return args.clone();
+
+            List<String> r = new ArrayList<String>(args.length+overrides.size());
+            if(args.length>0)
+                r.add(args[0]);     // the executable name
+            // properties that aren't in args go right after that
+            for (Map.Entry<String,String> e : overrides.entrySet())
+                if(e.getValue()!=null && !index.containsKey(e.getKey()))
+                    r.add("-D"+e.getKey()+"="+e.getValue());
+
+            for( int i=1; i<args.length; i++ ) {
+                String name = propertyName(args[i]);
+                if(name!=null && overrides.containsKey(name)) {
+                    // the overridden value takes the place of the last occurrence
+                    String v = overrides.get(name);
+                    if(v!=null && index.get(name)==i)
+                        r.add("-D"+name+"="+v);
+                    continue;
+                }
+                r.add(args[i]);
+            }
+            return r.toArray(new String[r.size()]);
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.asList(materialize()).toString();
+        }
+    }
+
+    /**
+     * If the argument is "-Dname" or "-Dname=value", returns the name. Otherwise null.
+     */
+    private static String propertyName(String arg) {
+        if(!arg.startsWith("-D"))
+            return null;
+        int eq = arg.indexOf('=');
+        return eq<0 ? arg.substring(2) : arg.substring(2,eq);
     }
 
     /**
@@ -115,11 +262,12 @@ public class JavaVMArguments extends ArrayList<String> {
     private static JavaVMArguments ofLinux(int pid) throws IOException {
         pid = resolvePID(pid);
 
-        String cmdline = readFile(new File("/proc/" + pid + "/cmdline"));
-        JavaVMArguments args = new JavaVMArguments(Arrays.asList(cmdline.split("\0")));
+        byte[] cmdline = readFile(new File("/proc/" + pid + "/cmdline"));
+        JavaVMArguments args = parse(cmdline,cmdline.length);
 
         // we don't want them inherited
         args.removeSystemProperty(Daemon.class.getName());
+        args.removeSystemProperty(Daemon.READY_FD_PROPERTY);
         args.removeSystemProperty(NetworkServer.class.getName()+".mode");
         return args;
     }
@@ -129,6 +277,39 @@ public class JavaVMArguments extends ArrayList<String> {
         return pid;
     }
 
+    /**
+     * Parses NUL-terminated arguments, in the encoding the JVM uses for the platform.
+     */
+    /*package*/ static JavaVMArguments parse(byte[] buf, int len) throws IOException {
+        JavaVMArguments args = new JavaVMArguments();
+        int start=0;
+        for( int i=0; i<len; i++ ) {
+            if(buf[i]==0) {
+                args.add(new String(buf,start,i-start,NATIVE_ENCODING));
+                start = i+1;
+            }
+        }
+        if(start<len)
+            args.add(new String(buf,start,len-start,NATIVE_ENCODING));
+        return args;
+    }
+
+    /*package*/ static final String NATIVE_ENCODING = System.getProperty("sun.jnu.encoding",System.getProperty("file.encoding"));
+
+    /**
+     * Gets the feature version of the running JVM, like 8 or 17.
+     */
+    /*package*/ static int getJavaVersion() {
+        String v = System.getProperty("java.specification.version");
+        if(v.startsWith("1."))
+            v = v.substring(2);
+        try {
+            return Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private static JavaVMArguments ofSolaris(int pid) throws IOException {
         // /proc shows different contents based on the caller's memory model, so we need to know if we are 32 or 64.
         // 32 JVMs are the norm, so err on the 32bit side.
@@ -336,18 +517,18 @@ public class JavaVMArguments extends ArrayList<String> {
     /**
      * Reads the entire file.
      */
-    private static String readFile(File f) throws IOException {
+    private static byte[] readFile(File f) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         FileInputStream fin = new FileInputStream(f);
         try {
             int sz;
-            byte[] buf = new byte[1024];
+            byte[] buf = new byte[8192];
 
             while((sz=fin.read(buf))>=0) {
                 baos.write(buf,0,sz);
             }
 
-            return baos.toString();
+            return baos.toByteArray();
         } finally {
             fin.close();
         }
@@ -0,0 +1,228 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Native;
+import com.sun.jna.ptr.IntByReference;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Kernel-level tuning of the listening sockets that {@link NetworkServer} shares with its workers.
+ *
+ * <p>
+ * The options are set on the listening socket with <tt>setsockopt</tt> before it's shared, and Linux
+ * copies the socket level options to the connections accepted from it, so they apply no matter how
+ * the workers accept connections. Options left at 0 or false keep the system default.
+ *
+ * <p>
+ * {@link NetworkServer#getListenerOptions()} reads these from system properties of the same names,
+ * such as <tt>com.sun.akuma.NetworkServer.backlog</tt>.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ListenerOptions {
+    private int backlog;
+    private int deferAccept;
+    private int fastOpen;
+    private int receiveBufferSize;
+    private int sendBufferSize;
+    private boolean tcpNoDelay;
+    private boolean incomingCpu;
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the maximum number of connections waiting to be accepted. Beyond this, the kernel drops SYNs.
+     * Defaults to 0, which means as many as the kernel allows with <tt>net.core.somaxconn</tt>,
+     * unlike the JDK default of 50 that overflows with bursts of connections.
+     */
+    public ListenerOptions setBacklog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    public int getDeferAccept() {
+        return deferAccept;
+    }
+
+    /**
+     * Sets <tt>TCP_DEFER_ACCEPT</tt>, so that a connection is only accepted once the client has sent some data,
+     * waiting up to the given seconds. This saves workers from waking up for connections that have nothing to read
+     * yet, for protocols where the client speaks first, such as HTTP.
+     */
+    public ListenerOptions setDeferAccept(int seconds) {
+        this.deferAccept = seconds;
+        return this;
+    }
+
+    public int getFastOpen() {
+        return fastOpen;
+    }
+
+    /**
+     * Sets <tt>TCP_FASTOPEN</tt>, which lets returning clients send data with their SYN and save a round trip.
+     * The value limits the number of pending fast open requests. This also needs the server bit of
+     * <tt>net.ipv4.tcp_fastopen</tt> to be set.
+     */
+    public ListenerOptions setFastOpen(int queueLength) {
+        this.fastOpen = queueLength;
+        return this;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Sets <tt>SO_RCVBUF</tt> of accepted connections. This is set before the socket starts listening,
+     * as it determines the TCP window scale negotiated with each client.
+     */
+    public ListenerOptions setReceiveBufferSize(int bytes) {
+        this.receiveBufferSize = bytes;
+        return this;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Sets <tt>SO_SNDBUF</tt> of accepted connections.
+     */
+    public ListenerOptions setSendBufferSize(int bytes) {
+        this.sendBufferSize = bytes;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Sets <tt>TCP_NODELAY</tt> on accepted connections, which disables the Nagle algorithm
+     * for request/response protocols that write small responses.
+     */
+    public ListenerOptions setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public boolean isIncomingCpu() {
+        return incomingCpu;
+    }
+
+    /**
+     * Sets <tt>SO_INCOMING_CPU</tt> on the socket of each worker that's pinned to a single CPU, so that
+     * the kernel hands connections to the worker running on the CPU that processed their packets.
+     * This only applies when each worker binds its own socket with {@link NetworkServer#isReusePort()}.
+     */
+    public ListenerOptions setIncomingCpu(boolean incomingCpu) {
+        this.incomingCpu = incomingCpu;
+        return this;
+    }
+
+    /**
+     * Reads the options from system properties that start with the given prefix, such as
+     * <tt>com.sun.akuma.NetworkServer.</tt>
+     */
+    public static ListenerOptions fromSystemProperties(String prefix) {
+        return new ListenerOptions()
+            .setBacklog(Integer.getInteger(prefix+"backlog",0))
+            .setDeferAccept(Integer.getInteger(prefix+"deferAccept",0))
+            .setFastOpen(Integer.getInteger(prefix+"fastOpen",0))
+            .setReceiveBufferSize(Integer.getInteger(prefix+"receiveBufferSize",0))
+            .setSendBufferSize(Integer.getInteger(prefix+"sendBufferSize",0))
+            .setTcpNoDelay(Boolean.getBoolean(prefix+"tcpNoDelay"))
+            .setIncomingCpu(Boolean.getBoolean(prefix+"incomingCpu"));
+    }
+
+    /**
+     * Binds a listening socket with these options.
+     *
+     * @param cpu
+     *      CPU the socket is dedicated to for {@link #setIncomingCpu(boolean)}, or -1.
+     */
+    public void bind(ServerSocketChannel ch, SocketAddress address, int cpu) throws IOException {
+        if(receiveBufferSize>0)
+            ch.setOption(StandardSocketOptions.SO_RCVBUF,receiveBufferSize);
+
+        // the kernel caps it to net.core.somaxconn
+        ch.bind(address,backlog>0 ? backlog : Integer.MAX_VALUE);
+
+        // the rest can be set on the listening socket
+        boolean tcp = address instanceof InetSocketAddress;
+        if(sendBufferSize<=0 && !(tcp && (deferAccept>0 || fastOpen>0 || tcpNoDelay || (incomingCpu && cpu>=0))))
+            return;
+        int fd = FileDescriptors.of(ch);
+        if(sendBufferSize>0)
+            setOption(fd,SOL_SOCKET,SO_SNDBUF,sendBufferSize,"SO_SNDBUF");
+        if(!tcp)
+            return;
+        if(deferAccept>0)
+            setOption(fd,IPPROTO_TCP,TCP_DEFER_ACCEPT,deferAccept,"TCP_DEFER_ACCEPT");
+        if(fastOpen>0)
+            setOption(fd,IPPROTO_TCP,TCP_FASTOPEN,fastOpen,"TCP_FASTOPEN");
+        if(tcpNoDelay)
+            setOption(fd,IPPROTO_TCP,TCP_NODELAY,1,"TCP_NODELAY");
+        if(incomingCpu && cpu>=0)
+            setOption(fd,SOL_SOCKET,SO_INCOMING_CPU,cpu,"SO_INCOMING_CPU");
+    }
+
+    /**
+     * Failing to tune the socket isn't worth failing to serve, as older kernels lack some of these options.
+     */
+    private static void setOption(int fd, int level, int name, int value, String displayName) {
+        IntByReference v = new IntByReference(value);
+        if(LIBC.setsockopt(fd,level,name,v.getPointer(),4)!=0)
+            LOGGER.warning("Failed to set "+displayName+" to "+value+": "+LIBC.strerror(Native.getLastError()));
+    }
+
+    @Override
+    public String toString() {
+        return "ListenerOptions[backlog="+backlog+",deferAccept="+deferAccept+",fastOpen="+fastOpen
+                +",receiveBufferSize="+receiveBufferSize+",sendBufferSize="+sendBufferSize
+                +",tcpNoDelay="+tcpNoDelay+",incomingCpu="+incomingCpu+"]";
+    }
+
+    // these values are Linux specific
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_SNDBUF = 7;
+    private static final int SO_INCOMING_CPU = 49;
+    private static final int IPPROTO_TCP = 6;
+    private static final int TCP_NODELAY = 1;
+    private static final int TCP_DEFER_ACCEPT = 9;
+    private static final int TCP_FASTOPEN = 23;
+
+    private static final Logger LOGGER = Logger.getLogger(ListenerOptions.class.getName());
+}
@@ -23,18 +23,41 @@
  */
 package com.sun.akuma;
 
-import com.sun.jna.StringArray;
+import com.sun.jna.Native;
+import com.sun.jna.ptr.IntByReference;
 
-import java.io.FileDescriptor;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.Field;
+import javax.management.JMException;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
 import java.net.ServerSocket;
-import java.net.SocketImpl;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.BitSet;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Collections;
 import java.util.Arrays;
 
@@ -48,7 +71,8 @@ import sun.misc.SignalHandler;
  * <p>
  * This class lets you write a Unix-like multi-process network daemon. The first process acts
  * as the frontend. This creates a new socket, then fork several worker processes, which inherits
- * this socket.
+ * this socket. A server can also listen on several ports and Unix domain sockets at once.
+ * See {@link #createListeners()}.
  *
  * <p>
  * Worker threads will all accept connections on this port, so even when one of the worker processes
@@ -56,7 +80,9 @@ import sun.misc.SignalHandler;
  *
  * <p>
  * The user of this class needs to override this class and implement abstract methods.
- * Several protected methods can be also overridden to customize the behaviors.
+ * Several protected methods can be also overridden to customize the behaviors. Most notably,
+ * the simplest way to write a worker is to override {@link #handle(Socket)}, which gets called
+ * for every connection on its own thread.
  * See {@link EchoServer} source code as an example.
  *
  * <p>
@@ -74,6 +100,48 @@ public abstract class NetworkServer extends Daemon {
      */
     protected final List<String> arguments;
 
+    /**
+     * In the frontend, the file descriptors of the sockets shared with workers.
+     * The first one becomes stdin of workers.
+     */
+    private final List<Integer> listenerFds = new ArrayList<Integer>();
+    /**
+     * The sockets that own {@link #listenerFds}, which are closed through them.
+     */
+    private final List<Closeable> listenerSockets = new ArrayList<Closeable>();
+    /**
+     * True once {@link #closeListeners()} has run.
+     */
+    private boolean listenersClosed;
+    /**
+     * TCP ports of {@link #listenerFds}.
+     */
+    private final List<Integer> listenerPorts = new ArrayList<Integer>();
+    /**
+     * In the frontend, the configuration passed to all the workers. Each worker gets a copy with its own slot.
+     */
+    private final WorkerConfig workerConfig = new WorkerConfig();
+    /**
+     * In the frontend, the descriptor of the configuration of the worker that's being launched, or -1.
+     * Workers are launched one at a time by {@link WorkerPool}.
+     */
+    private int workerConfigFd = -1;
+
+    private CpuTopology cpuTopology;
+    private ContainerLimits containerLimits;
+    private volatile ProcessSampler sampler;
+
+    /**
+     * In the worker, the listening sockets that get closed when it starts draining.
+     */
+    private final List<Closeable> accepting = new CopyOnWriteArrayList<Closeable>();
+    private volatile boolean draining;
+
+    /**
+     * In the frontend, non-null if {@link #isDispatch()}.
+     */
+    private Dispatcher dispatcher;
+
     protected NetworkServer(String[] args) {
         this.arguments = Collections.unmodifiableList(Arrays.asList(args));
     }
@@ -86,6 +154,13 @@ public abstract class NetworkServer extends Daemon {
         if("worker".equals(mode)) {
             // worker process
             worker();
+            if(draining) {
+                // the TERM handler exits once the connections in progress are done
+                synchronized (this) {
+                    while(true)
+                        wait();
+                }
+            }
         } else {
             // to run the frontend in the foreground
             if(isDaemonized()) {
@@ -100,7 +175,12 @@ public abstract class NetworkServer extends Daemon {
                 }
             }
 
-            frontend();
+            try {
+                frontend();
+            } catch (Exception e) {
+                Daemon.notifyFailure(e.toString());
+                throw e;
+            }
         }
     }
 
@@ -115,14 +195,41 @@ public abstract class NetworkServer extends Daemon {
      * Front-end.
      */
     protected void frontend() throws Exception {
-        ServerSocket ss = createServerSocket();
-        int fdn = getUnixFileDescriptor(ss);
+        if(isReusePort() && !isDispatch()) {
+            // every worker binds its own socket, so there's nothing to share
+            LOGGER.fine("Workers will listen with SO_REUSEPORT");
+            forkWorkers(JavaVMArguments.current());
+            return;
+        }
+
+        List<ServerSocketChannel> listeners = createListeners();
+        if(listeners==null) {
+            ServerSocket ss = createServerSocket();
+            listenerFds.add(FileDescriptors.of(ss));
+            listenerSockets.add(ss);
+            listenerPorts.add(ss.getLocalPort());
+        } else {
+            if(listeners.isEmpty())
+                throw new IllegalStateException("No listener");
+            for (ServerSocketChannel ch : listeners) {
+                int fd = FileDescriptors.of(ch);
+                listenerFds.add(fd);
+                listenerSockets.add(ch);
+                SocketAddress local = ch.getLocalAddress();
+                if(local instanceof InetSocketAddress)
+                    listenerPorts.add(((InetSocketAddress)local).getPort());
+            }
+        }
+
+        LOGGER.fine("Listening to "+(listeners!=null ? listeners : "port "+listenerPorts)+" (fd="+listenerFds+")");
 
-        LOGGER.fine("Listening to port "+ss.getLocalPort()+" (fd="+fdn+")");
+        // the first listener becomes the stdin of workers, and the rest are inherited by their numbers,
+        // unless connections are dispatched. a stray copy would keep the socket open after a draining worker closes it
+        for( int i=0; i<listenerFds.size(); i++ )
+            LIBC.fcntl(listenerFds.get(i),F_SETFD,i>0 && !isDispatch() ? 0 : FD_CLOEXEC);
 
         // prepare the parameters for the exec.
         JavaVMArguments forkArgs = JavaVMArguments.current();
-        forkArgs.setSystemProperty(NetworkServer.class.getName()+".port",String.valueOf(fdn));
 
         forkWorkers(forkArgs);
     }
@@ -131,113 +238,992 @@ public abstract class NetworkServer extends Daemon {
      * Forks the worker thread with the given JVM args.
      *
      * The implementation is expected to modify the arguments to suit their need,
-     * then call into {@link #forkWorkerThreads(JavaVMArguments, int)}.
+     * then call into {@link #forkWorkerThreads(JavaVMArguments, int)}
+     * or {@link #forkWorkerThreads(JavaVMArguments, int, int)}.
      */
     protected abstract void forkWorkers(JavaVMArguments args) throws Exception;
 
     /**
      * Called by the front-end code to fork a number of worker processes into the background.
      *
+     * <p>
+     * The frontend then keeps supervising the workers, and respawns those that died,
+     * so that n workers are always running. Sending <tt>SIGHUP</tt> to the frontend
+     * replaces the workers one by one. See {@link WorkerPool#restart()}. Sending <tt>SIGTERM</tt>
+     * lets the workers finish the connections in progress before everything exits. See {@link WorkerPool#shutdown()}.
+     *
      * This method never returns.
      */
     protected void forkWorkerThreads(JavaVMArguments arguments, int n) throws Exception {
-        String exe = Daemon.getCurrentExecutable();
+        forkWorkerThreads(arguments,n,null);
+    }
+
+    /**
+     * Called by the front-end code to fork worker processes into the background,
+     * and scale their number between min and max to the load.
+     *
+     * <p>
+     * The load is determined from the number of connections the workers are serving against their capacity,
+     * and the number of connections waiting to be accepted. See {@link Autoscaler} for details,
+     * and {@link #createAutoscaler(int, int)} to tune it.
+     *
+     * This method never returns.
+     */
+    protected void forkWorkerThreads(JavaVMArguments arguments, int min, int max) throws Exception {
+        forkWorkerThreads(arguments,max,createAutoscaler(min,max));
+    }
+
+    /**
+     * Creates the {@link Autoscaler} for {@link #forkWorkerThreads(JavaVMArguments, int, int)}.
+     * Override this method to tune its thresholds and delays.
+     *
+     * <p>
+     * By default, a worker is considered fully busy when it serves as many connections as
+     * {@link #createConnectionExecutor()} has threads.
+     */
+    protected Autoscaler createAutoscaler(int min, int max) {
+        return new Autoscaler(min,max).setCapacity(getMaxThreads());
+    }
+
+    private void forkWorkerThreads(JavaVMArguments arguments, int max, Autoscaler autoscaler) throws Exception {
         arguments.setSystemProperty(MODE_PROPERTY,"worker"); // the forked process should run as workers
         LOGGER.fine("Forking worker: "+arguments);
-        StringArray sa = arguments.toStringArray();
 
-        // fork several worker processes
-        for( int i=0; i< n; i++ ) {
-            int r = LIBC.fork();
-            if(r<0) {
-                LIBC.perror("forking a worker process failed");
-                System.exit(-1);
-            }
-            if(r==0) {
-                // newly created child will exec to itself to get the proper Java environment back
-                LIBC.execv(exe,sa);
-                System.err.println("exec failed");
-                LIBC.perror("initial exec failed");
-                System.exit(-1);
+        // one spare slot for rolling restarts
+        Scoreboard scoreboard = createScoreboard(max+1);
+        LOGGER.fine("Scoreboard is at "+scoreboard.getFile());
+        workerConfig.put(Scoreboard.FILE_PROPERTY,scoreboard.getFile().getPath());
+        if(isNuma())
+            addNumaOptions(arguments);
+        if(isFitContainer()) {
+            // count the spare slot, as the old and the new worker overlap during rolling restarts
+            getContainerLimits().sizeWorker(arguments,max+1,getResidentMemory());
+            LOGGER.fine("Sized workers to "+getContainerLimits()+": "+arguments);
+        }
+        if(isDispatch()) {
+            // workers get connections from the dispatcher as their stdin, instead of listeners
+            dispatcher = new Dispatcher(scoreboard);
+            // see FileDescriptors.toSocketChannel()
+            if(JavaVMArguments.getJavaVersion()>=9 && !arguments.contains(ADD_OPENS))
+                arguments.add(1,ADD_OPENS);
+        } else if(listenerFds.size()>1) {
+            // the first listener becomes stdin, and the rest are passed by their numbers
+            int[] fds = new int[listenerFds.size()-1];
+            for( int i=0; i<fds.length; i++ )
+                fds[i] = listenerFds.get(i+1);
+            workerConfig.putDescriptors(LISTENERS_KEY,fds);
+            // see FileDescriptors.toServerSocketChannel()
+            if(JavaVMArguments.getJavaVersion()>=9 && !arguments.contains(ADD_OPENS))
+                arguments.add(1,ADD_OPENS);
+        }
+
+        configureWorkers(workerConfig);
+
+        final WorkerPool pool = new WorkerPool(this,arguments.snapshot(),scoreboard);
+        pool.setAutoscaler(autoscaler);
+
+        // when we are told to terminate, stop taking new connections, and let the workers finish theirs
+        final Runnable drain = new Runnable() {
+            public void run() {
+                closeListeners();
+                pool.shutdown();
             }
+        };
+
+        // bind before launching workers, so that a second instance fails without leaving them behind
+        ControlSocket control = null;
+        String controlPath = getControlSocket();
+        if(controlPath!=null) {
+            control = new ControlSocket(pool,drain);
+            control.bind(controlPath);
         }
 
-        // when we are killed, kill all the worker processes, too.
+        pool.start(autoscaler!=null ? autoscaler.getMin() : max);
+        if(dispatcher!=null)
+            dispatcher.start(listenerFds);
+        startSampler(pool);
+
+        if(control!=null) {
+            control.start();
+            LOGGER.fine("Listening to commands on "+controlPath);
+        }
+
+        // SIGHUP replaces the workers
+        Signal.handle(new Signal("HUP"),
+            new SignalHandler() {
+                public void handle(Signal sig) {
+                    pool.restart();
+                }
+            });
+
         Signal.handle(new Signal("TERM"),
             new SignalHandler() {
                 public void handle(Signal sig) {
-                    LIBC.kill(0,SIGTERM);
-                    System.exit(-1);
+                    drain.run();
                 }
             });
 
-        // hang forever
-        Object o = new Object();
-        synchronized (o) {
-            o.wait();
+        pool.supervise();
+        System.exit(pool.hasFailed() ? -1 : 0);
+    }
+
+    /**
+     * Path of the Unix domain socket that the frontend accepts commands from, such as
+     * <tt>status</tt>, <tt>workers</tt>, <tt>scale N</tt>, <tt>reload</tt>, and <tt>drain</tt>.
+     * Set the <tt>com.sun.akuma.NetworkServer.controlSocket</tt> system property to enable.
+     *
+     * <p>
+     * Unlike signals, commands get a response, and unlike the PID file, the socket
+     * is there for as long as the frontend is. Try <tt>echo status | socat - UNIX-CONNECT:path</tt>.
+     *
+     * @return
+     *      null to disable.
+     */
+    protected String getControlSocket() {
+        return System.getProperty(NetworkServer.class.getName()+".controlSocket");
+    }
+
+    /**
+     * Called in the frontend before launching workers, to pass them configuration out of band of their
+     * command line. Workers get it with {@link WorkerConfig#current()}.
+     *
+     * <p>
+     * This is the place for things that can't or shouldn't be system properties, like secrets,
+     * binary data, and file descriptors. The default implementation does nothing.
+     */
+    protected void configureWorkers(WorkerConfig config) throws Exception {
+    }
+
+    /**
+     * Gets the number of connections waiting in the listen queue to be accepted by workers.
+     *
+     * @return
+     *      -1 if unknown, for example because the workers listen on their own sockets.
+     *      Unix domain sockets aren't counted.
+     */
+    protected int getListenQueueLength() {
+        if(listenerPorts.isEmpty())
+            return -1;
+        try {
+            int n = 0;
+            for (int port : listenerPorts) {
+                List<String[]> sockets = FileDescriptors.listeningSockets(port);
+                if(sockets.isEmpty())
+                    return -1;
+                for (String[] tokens : sockets) {
+                    // for listening sockets, rx_queue is the number of connections waiting to be accepted
+                    String queues = tokens[4];
+                    n += Integer.parseInt(queues.substring(queues.indexOf(':')+1),16);
+                }
+            }
+            return n;
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read the listen queue", e);
+            return -1;
+        }
+    }
+
+    /**
+     * Creates the {@link Scoreboard} that the workers report their status to.
+     *
+     * <p>
+     * By default, this creates a file in a new private directory under the temporary directory,
+     * both of which are deleted when the frontend exits.
+     * Override this method to put it in a well-known place for monitoring tools.
+     */
+    protected Scoreboard createScoreboard(int slots) throws IOException {
+        // a fresh directory that only we can write to, so that nobody can plant a file at the path
+        File dir = Files.createTempDirectory("akuma-"+LIBC.getpid()+"-",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))).toFile();
+        dir.deleteOnExit();
+        File f = new File(dir,"scoreboard");
+        f.deleteOnExit();   // runs before the directory's
+        return Scoreboard.create(f,slots);
+    }
+
+    /**
+     * Called by {@link WorkerPool} to launch a worker process into the given slot.
+     *
+     * @param arguments
+     *      Arguments all the workers share. The ones of this worker are derived from them without copying the template.
+     * @return
+     *      PID of the worker if positive. Otherwise the negated error number.
+     */
+    /*package*/ int launchWorker(JavaVMArguments.Snapshot arguments, int slot) {
+        int config;
+        try {
+            config = new WorkerConfig(workerConfig).put(Scoreboard.SLOT_PROPERTY,slot).open();
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to pass the configuration to the worker #"+slot, e);
+            return -EIO;
+        }
+        // the worker inherits it, and only its number shows up in the command line.
+        // it's only inheritable while we launch this worker, as we close it right after
+        try {
+            LIBC.fcntl(config,F_SETFD,0);
+            workerConfigFd = config;
+            return spawnWorker(arguments.withSystemProperty(WorkerConfig.FD_PROPERTY,String.valueOf(config)).toArguments(),slot);
+        } finally {
+            workerConfigFd = -1;
+            LIBC.close(config);
+        }
+    }
+
+    /**
+     * Launches a worker process into the given slot of the pool.
+     *
+     * <p>
+     * This method is called both for the initial set of workers and for respawning dead ones.
+     *
+     * @param arguments
+     *      Arguments of the worker JVM, which are already specific to this slot.
+     *      Overriding methods can customize them further.
+     * @param slot
+     *      0-origin index of the worker, which is retained when the worker gets respawned.
+     * @return
+     *      PID of the worker if positive. Otherwise the negated error number.
+     */
+    protected int spawnWorker(JavaVMArguments arguments, int slot) {
+        BitSet cpus = getAffinity(slot);
+        if(cpus==null)
+            return spawn(arguments,slot);
+
+        // the new process inherits the affinity of the thread that launches it,
+        // which is better than pinning it afterward, as the JVM sizes its thread pools by it
+        BitSet original;
+        try {
+            original = CpuTopology.getAffinity();
+            CpuTopology.setAffinity(cpus);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to pin the worker #"+slot+" to "+cpus, e);
+            return spawn(arguments,slot);
         }
+        try {
+            LOGGER.fine("Pinning the worker #"+slot+" to "+cpus);
+            return spawn(arguments,slot);
+        } finally {
+            try {
+                CpuTopology.setAffinity(original);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to restore the CPU affinity to "+original, e);
+            }
+        }
+    }
+
+    private int spawn(JavaVMArguments arguments, int slot) {
+        SharedArchive archive = getSharedArchive();
+        if(archive==null || !archive.apply(arguments))
+            return exec(arguments,slot);
+
+        int pid = exec(arguments,slot);
+        if(pid<0)
+            archive.failed();
+        else
+            archive.launched(pid);
+        return pid;
+    }
+
+    private int exec(JavaVMArguments arguments, int slot) {
+        // the worker only inherits its configuration and the descriptors passed through it
+        List<Integer> inherited = new ArrayList<Integer>();
+        if(workerConfigFd>=0)
+            inherited.add(workerConfigFd);
+        for (String key : workerConfig.keySet()) {
+            int[] fds = workerConfig.getDescriptors(key);
+            if(fds!=null)
+                for (int fd : fds)
+                    inherited.add(fd);
+        }
+        int[] keep = new int[inherited.size()];
+        for( int i=0; i<keep.length; i++ )
+            keep[i] = inherited.get(i);
+
+        if(dispatcher!=null) {
+            // the worker gets its end of the socket pair as stdin
+            int ch = dispatcher.open(slot);
+            try {
+                return getSpawnStrategy().spawn(Daemon.getCurrentExecutable(),arguments,ch,keep);
+            } finally {
+                LIBC.close(ch);
+            }
+        }
+
+        // newly created child will exec to itself to get the proper Java environment back,
+        // and the shared socket becomes its stdin
+        return getSpawnStrategy().spawn(Daemon.getCurrentExecutable(),arguments,
+                listenerFds.isEmpty() ? -1 : listenerFds.get(0),keep);
+    }
+
+    /**
+     * Stops accepting connections in the frontend, so that new clients are refused right away,
+     * instead of waiting in the backlog of a server that's going away.
+     *
+     * <p>
+     * This can be requested more than once, for example by <tt>SIGTERM</tt> after the <tt>drain</tt> command,
+     * but only the first call does anything.
+     */
+    private synchronized void closeListeners() {
+        if(listenersClosed)
+            return;
+        listenersClosed = true;
+
+        if(dispatcher!=null) {
+            dispatcher.stop();
+            // unlike close, this also wakes up the threads blocked in accept. the sockets stay open,
+            // so the descriptors can't have been reused by the time we get here
+            for (int fd : listenerFds)
+                LIBC.shutdown(fd,SHUT_RD);
+            return;
+        }
+
+        // workers are still accepting from the shared socket, and each of them closes it when it starts draining.
+        // shutting it down here would fail their accept before they are told to terminate
+        for (Closeable c : listenerSockets) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to close "+c, e);
+            }
+        }
+    }
+
+    /**
+     * Determines how long a worker that's told to terminate keeps serving the connections in progress, in milliseconds.
+     * The worker exits once they are all done, or when this timeout expires, whichever comes first.
+     *
+     * <p>
+     * By default, this is taken from the <tt>com.sun.akuma.NetworkServer.drainTimeout</tt> system property,
+     * which defaults to 30 seconds.
+     */
+    protected long getDrainTimeout() {
+        return Long.getLong(NetworkServer.class.getName()+".drainTimeout",DEFAULT_DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Called in the frontend when the worker in the given slot is told to terminate.
+     */
+    /*package*/ void workerRetired(int slot) {
+        if(dispatcher!=null)
+            dispatcher.close(slot);
+    }
+
+    /**
+     * Determines if the frontend accepts connections and dispatches each of them to the least loaded worker,
+     * as opposed to letting the workers accept connections from the shared socket.
+     *
+     * <p>
+     * With a shared socket, whichever worker wins the race to <tt>accept</tt> gets the connection, even if
+     * it's already saturated. Dispatching evens out the load, which helps the tail latency with long-lived
+     * connections, at the cost of passing every connection through the frontend. Workers receive connections
+     * in {@link #worker(DispatchQueue)}. This takes precedence over {@link #isReusePort()}.
+     * By default this is controlled by the <tt>com.sun.akuma.NetworkServer.dispatch</tt> system property.
+     *
+     * <p>
+     * On JDK 9 and later, this adds <tt>--add-opens=java.base/sun.nio.ch=ALL-UNNAMED</tt> to the arguments
+     * of the workers, as turning the received descriptors into {@link SocketChannel}s requires the JDK internals.
+     */
+    protected boolean isDispatch() {
+        return Boolean.getBoolean(NetworkServer.class.getName()+".dispatch");
+    }
+
+    /**
+     * Determines the CPUs that the worker in the given slot is pinned to.
+     *
+     * <p>
+     * By default, this is controlled by the <tt>com.sun.akuma.NetworkServer.affinity</tt> system property.
+     * "node" pins each worker to the CPUs of one NUMA node, and "cpu" pins each worker to a single CPU.
+     * Either way, consecutive workers are spread across NUMA nodes.
+     *
+     * @return
+     *      null to let the worker run on any CPU.
+     */
+    protected BitSet getAffinity(int slot) {
+        String mode = System.getProperty(NetworkServer.class.getName()+".affinity","none");
+        if(mode.equals("none"))
+            return null;
+        if(mode.equals("node"))
+            return getCpuTopology().getNodeOf(slot);
+        if(mode.equals("cpu"))
+            return getCpuTopology().getCpuOf(slot);
+        throw new IllegalArgumentException("Unknown affinity: "+mode);
+    }
+
+    /**
+     * Determines the CPU topology that workers are placed on.
+     */
+    protected synchronized CpuTopology getCpuTopology() {
+        if(cpuTopology==null)
+            cpuTopology = CpuTopology.current();
+        return cpuTopology;
+    }
+
+    /**
+     * Whether workers should get JVM options for NUMA hosts.
+     * Set the <tt>com.sun.akuma.NetworkServer.numa</tt> system property to enable.
+     */
+    protected boolean isNuma() {
+        return Boolean.getBoolean(NetworkServer.class.getName()+".numa");
+    }
+
+    /**
+     * Adds JVM options for NUMA hosts to the arguments of workers, unless they are already specified.
+     *
+     * <p>
+     * <tt>-XX:+UseNUMA</tt> lets the GC allocate from the node local to the thread, and
+     * <tt>-XX:+AlwaysPreTouch</tt> commits the heap while the worker is still on the CPUs
+     * it's pinned to, so that the first-touch policy places the heap on that node.
+     */
+    protected void addNumaOptions(JavaVMArguments arguments) {
+        for (String option : NUMA_OPTIONS) {
+            String name = option.substring("-XX:+".length());
+            if(!arguments.contains("-XX:+"+name) && !arguments.contains("-XX:-"+name))
+                arguments.add(1,option);
+        }
+    }
+
+    /**
+     * Determines how often the resource usage of workers is sampled by {@link ProcessSampler}, in milliseconds.
+     * If this is 0, it's not sampled at all.
+     *
+     * <p>
+     * By default, this is taken from the <tt>com.sun.akuma.NetworkServer.sampleInterval</tt> system property.
+     */
+    protected long getSampleInterval() {
+        return Long.getLong(NetworkServer.class.getName()+".sampleInterval",0);
+    }
+
+    private void startSampler(WorkerPool pool) {
+        long interval = getSampleInterval();
+        if(interval<=0)     return;
+        sampler = new ProcessSampler(pool).setInterval(interval);
+        sampler.start();
+        try {
+            sampler.register();
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register "+ProcessSampler.OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Gets the {@link ProcessSampler} of the workers, or null if they aren't sampled.
+     */
+    public ProcessSampler getSampler() {
+        return sampler;
+    }
+
+    /**
+     * Whether the JVM options of workers should be rewritten, so that the whole pool fits in the limits
+     * of the container. See {@link ContainerLimits#sizeWorker(JavaVMArguments, int, long)}.
+     * Set the <tt>com.sun.akuma.NetworkServer.fitContainer</tt> system property to enable.
+     */
+    protected boolean isFitContainer() {
+        return Boolean.getBoolean(NetworkServer.class.getName()+".fitContainer");
+    }
+
+    /**
+     * Determines the CPU and memory limits that the frontend and the workers share.
+     * {@link #forkWorkers(JavaVMArguments)} can use {@link ContainerLimits#getWorkerCount()} to decide the number of workers.
+     */
+    protected synchronized ContainerLimits getContainerLimits() {
+        if(containerLimits==null)
+            containerLimits = ContainerLimits.current();
+        return containerLimits;
+    }
+
+    /**
+     * Memory used by the current process, which the workers can't have.
+     */
+    private static long getResidentMemory() {
+        try {
+            BufferedReader r = new BufferedReader(new FileReader("/proc/self/status"));
+            try {
+                String line;
+                while((line=r.readLine())!=null)
+                    if(line.startsWith("VmRSS:"))
+                        return Long.parseLong(line.substring(6).trim().split("\\s+")[0])*1024;
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read the resident memory size", e);
+        }
+        return 0;
     }
 
     /**
      * Creates a bound {@link ServerSocket} that will be shared by all worker processes.
      * This method is called in the frontend process.
+     *
+     * <p>
+     * If {@link #isReusePort()} is true, this method is instead called in every worker process,
+     * and each worker gets its own socket. In that case the socket needs to be created
+     * through {@link #openServerSocket(SocketAddress)}.
      */
     protected abstract ServerSocket createServerSocket() throws Exception;
 
     /**
-     * Determines the Unix file descriptor number of the given {@link ServerSocket}.
+     * Creates bound sockets that will be shared by all worker processes, for servers that listen
+     * on more than one address. This method is called in the frontend process.
+     *
+     * <p>
+     * Use {@link #openServerSocket(SocketAddress)} for TCP ports, and {@link #openUnixServerSocket(String)}
+     * for Unix domain sockets, which are cheaper than TCP for clients on the same host.
+     * Workers get all of them in {@link #worker(List)}.
+     *
+     * <p>
+     * If {@link #isReusePort()} is true, this method is instead called in every worker process,
+     * and each worker gets its own sockets. Unix domain sockets can't be shared that way.
+     *
+     * <p>
+     * Otherwise, on JDK 9 and later, returning more than one socket adds
+     * <tt>--add-opens=java.base/sun.nio.ch=ALL-UNNAMED</tt> to the arguments of the workers, as turning
+     * the inherited descriptors into {@link ServerSocketChannel}s requires the JDK internals.
+     *
+     * @return
+     *      null to use the single socket created by {@link #createServerSocket()}, which is the default.
      */
-    private int getUnixFileDescriptor(ServerSocket ss) throws NoSuchFieldException, IllegalAccessException, NoSuchMethodException, InvocationTargetException {
-        Field $impl = ss.getClass().getDeclaredField("impl");
-        $impl.setAccessible(true);
-        SocketImpl socketImpl = (SocketImpl)$impl.get(ss);
-        Method $getFileDescriptor = SocketImpl.class.getDeclaredMethod("getFileDescriptor");
-        $getFileDescriptor.setAccessible(true);
-        FileDescriptor fd = (FileDescriptor) $getFileDescriptor.invoke(socketImpl);
-        Field $fd = fd.getClass().getDeclaredField("fd");
-        $fd.setAccessible(true);
-        return (Integer)$fd.get(fd);
+    protected List<ServerSocketChannel> createListeners() throws Exception {
+        return null;
+    }
+
+    /**
+     * Determines if each worker binds its own socket with <tt>SO_REUSEPORT</tt>, as opposed to
+     * accepting connections from a single socket created by the frontend.
+     *
+     * <p>
+     * With <tt>SO_REUSEPORT</tt> the kernel distributes incoming connections across per-worker
+     * accept queues, instead of all the workers contending on one queue. This requires Linux 3.9
+     * or later. By default this is controlled by the <tt>com.sun.akuma.NetworkServer.reusePort</tt>
+     * system property.
+     */
+    protected boolean isReusePort() {
+        return Boolean.getBoolean(NetworkServer.class.getName()+".reusePort");
+    }
+
+    /**
+     * Creates a {@link ServerSocket} bound to the given address, with <tt>SO_REUSEPORT</tt>
+     * enabled if {@link #isReusePort()}.
+     *
+     * <p>
+     * The returned socket is backed by a {@link ServerSocketChannel}, which gets passed to
+     * {@link #worker(ServerSocketChannel)}. This is a convenience method for implementing
+     * {@link #createServerSocket()}.
+     */
+    protected ServerSocket openServerSocket(SocketAddress address) throws Exception {
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        int cpu = -1;
+        if(isReusePort()) {
+            enableReusePort(ch);
+            // the socket is dedicated to this worker, so it can ask for connections arriving on its CPU
+            BitSet cpus = CpuTopology.getAffinity();
+            if(cpus.cardinality()==1)
+                cpu = cpus.nextSetBit(0);
+        }
+        getListenerOptions().bind(ch,address,cpu);
+        return ch.socket();
+    }
+
+    /**
+     * Determines the {@link ListenerOptions} of the listening sockets opened by {@link #openServerSocket(SocketAddress)}
+     * and {@link #openUnixServerSocket(String)}.
+     *
+     * <p>
+     * By default, they are taken from the system properties like <tt>com.sun.akuma.NetworkServer.backlog</tt>.
+     * Override this method to tune them in code.
+     */
+    protected ListenerOptions getListenerOptions() {
+        return ListenerOptions.fromSystemProperties(NetworkServer.class.getName()+".");
+    }
+
+    /**
+     * Creates a Unix domain socket bound to the given path. This is a convenience method for implementing
+     * {@link #createListeners()}. The socket file is deleted when the frontend exits.
+     *
+     * <p>
+     * Unix domain socket channels don't have {@link ServerSocketChannel#socket()}, so they need to be served
+     * with something like {@link Reactor}, as opposed to {@link #worker(ServerSocket)}.
+     *
+     * <p>
+     * A socket file left behind at the path by an earlier run is replaced, but this method fails
+     * if another process is still accepting connections on it, or if the path is something other than a socket.
+     *
+     * @throws UnsupportedOperationException
+     *      on JDK 15 and earlier, which don't support Unix domain sockets.
+     */
+    protected ServerSocketChannel openUnixServerSocket(String path) throws Exception {
+        ServerSocketChannel ch;
+        SocketAddress address;
+        try {
+            ch = (ServerSocketChannel)ServerSocketChannel.class.getMethod("open",ProtocolFamily.class)
+                    .invoke(null,StandardProtocolFamily.valueOf("UNIX"));
+            address = (SocketAddress)Class.forName("java.net.UnixDomainSocketAddress").getMethod("of",String.class)
+                    .invoke(null,path);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16 or later");
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedOperationException("Unix domain sockets require JDK 16 or later");
+        }
+
+        // a socket file left behind by an earlier run would fail the bind
+        File f = new File(path);
+        FileDescriptors.deleteStaleSocket(f);
+        getListenerOptions().bind(ch,address,-1);
+        f.deleteOnExit();
+        return ch;
+    }
+
+    /**
+     * Sets <tt>SO_REUSEPORT</tt> on a socket that's not bound yet.
+     */
+    private void enableReusePort(ServerSocketChannel ch) throws Exception {
+        try {
+            // JDK 9 and later support this natively
+            Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+            Method $setOption = Class.forName("java.nio.channels.NetworkChannel").getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+            $setOption.invoke(ch,option,true);
+            return;
+        } catch (ClassNotFoundException e) {
+            // fall through
+        } catch (NoSuchFieldException e) {
+            // fall through
+        } catch (NoSuchMethodException e) {
+            // fall through
+        }
+
+        IntByReference one = new IntByReference(1);
+        if(LIBC.setsockopt(FileDescriptors.of(ch.socket()),SOL_SOCKET,SO_REUSEPORT,one.getPointer(),4)!=0)
+            throw new IOException("Failed to set SO_REUSEPORT: "+LIBC.strerror(Native.getLastError()));
     }
 
     protected void worker() throws Exception {
-        String port = System.getProperty(NetworkServer.class.getName() + ".port");
-        worker(recreateServerSocket(Integer.parseInt(port)));
+        startHeartbeat();
+        Signal.handle(new Signal("TERM"), new SignalHandler() {
+            public void handle(Signal sig) {
+                drain();
+            }
+        });
+
+        if(isDispatch()) {
+            // the frontend passes connections through our stdin
+            worker(new DispatchQueue(0));
+            return;
+        }
+
+        if(isReusePort()) {
+            List<ServerSocketChannel> listeners = createListeners();
+            if(listeners!=null) {
+                accepting.addAll(listeners);
+                worker(listeners);
+                return;
+            }
+            ServerSocket ss = createServerSocket();
+            accepting.add(ss);
+            if(ss.getChannel()!=null)
+                worker(ss.getChannel());
+            else
+                worker(ss);
+            return;
+        }
+
+        // the frontend passes the listening socket as our stdin
+        Channel ch = System.inheritedChannel();
+        if(!(ch instanceof ServerSocketChannel))
+            throw new IllegalStateException("Expected a listening socket as stdin but found "+ch);
+
+        accepting.add(ch);
+        int[] fds = WorkerConfig.current().getDescriptors(LISTENERS_KEY);
+        if(fds==null) {
+            worker((ServerSocketChannel)ch);
+            return;
+        }
+
+        // and the rest of them by their numbers
+        List<ServerSocketChannel> channels = new ArrayList<ServerSocketChannel>();
+        channels.add((ServerSocketChannel)ch);
+        for (int fd : fds)
+            channels.add(FileDescriptors.toServerSocketChannel(fd));
+        accepting.addAll(channels);
+        worker(channels);
+    }
+
+    /**
+     * Called in the worker upon <tt>SIGTERM</tt>. Stops accepting connections, waits for the connections
+     * in progress to complete up to {@link #getDrainTimeout()}, then exits.
+     *
+     * <p>
+     * The progress is tracked by {@link Scoreboard.Slot#getActive()}, so workers that serve connections without
+     * going through the {@link Scoreboard} exit right away.
+     */
+    private void drain() {
+        synchronized (this) {
+            if(draining)    return;
+            draining = true;
+        }
+        Scoreboard.Slot slot = Scoreboard.getCurrentSlot();
+        slot.draining();
+        try {
+            stopAccepting();
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Failed to stop accepting connections", e);
+        }
+
+        long deadline = System.currentTimeMillis()+getDrainTimeout();
+        long nextReport = 0;
+        while(slot.getActive()>0) {
+            long now = System.currentTimeMillis();
+            if(now>=deadline) {
+                LOGGER.warning("Exiting with "+slot.getActive()+" connections in progress");
+                break;
+            }
+            if(now>=nextReport) {
+                LOGGER.info("Draining "+slot.getActive()+" connections");
+                nextReport = now+DRAIN_REPORT_INTERVAL;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Called in the worker when it's told to terminate, to stop accepting new connections.
+     *
+     * <p>
+     * By default, this closes the listening sockets the worker accepts connections from, which
+     * makes {@link #worker(ServerSocket)} return. Other workers keep accepting from the shared socket.
+     * Override this method to also close idle keep-alive connections, for example.
+     */
+    protected void stopAccepting() throws Exception {
+        Channel inherited = System.inheritedChannel();
+        for (Closeable c : accepting) {
+            if(c!=inherited) {
+                c.close();
+                continue;
+            }
+
+            // closing the inherited channel redirects stdin, stdout, and stderr to /dev/null,
+            // as it assumes that inetd passed the socket as all three. keep our output
+            int out = LIBC.fcntl(1,F_DUPFD_CLOEXEC,3);
+            int err = LIBC.fcntl(2,F_DUPFD_CLOEXEC,3);
+            c.close();
+            if(out>=0) {
+                LIBC.dup2(out,1);
+                LIBC.close(out);
+            }
+            if(err>=0) {
+                LIBC.dup2(err,2);
+                LIBC.close(err);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the worker has been told to terminate, and is finishing the connections in progress.
+     */
+    protected boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Serves connections from all the listening sockets created by {@link #createListeners()}.
+     *
+     * <p>
+     * By default, each socket is served by {@link #worker(ServerSocketChannel)} on its own thread.
+     * Override this method to multiplex all of them on the same threads, for example with {@link Reactor#run(List)}.
+     */
+    protected void worker(List<ServerSocketChannel> channels) throws Exception {
+        for (final ServerSocketChannel ch : channels.subList(1,channels.size())) {
+            Thread t = new Thread("Listener "+ch.getLocalAddress()) {
+                @Override
+                public void run() {
+                    try {
+                        worker(ch);
+                    } catch (Exception e) {
+                        // let the frontend respawn us, rather than silently not serving this socket
+                        LOGGER.log(Level.SEVERE, "Failed to serve "+ch, e);
+                        System.exit(-1);
+                    }
+                }
+            };
+            t.start();
+        }
+        worker(channels.get(0));
+    }
+
+    /**
+     * Marks this worker as ready to serve in the {@link Scoreboard}, which is what the frontend waits for
+     * before it considers the pool started, or retires the old worker during a rolling restart.
+     *
+     * <p>
+     * The default worker implementations and {@link Reactor} call this method right before they start accepting
+     * connections. Subclasses that accept connections on their own need to call it once they do.
+     */
+    protected void ready() {
+        Scoreboard.getCurrentSlot().ready();
+    }
+
+    /**
+     * Keeps updating the heartbeat of this worker in the {@link Scoreboard}.
+     */
+    private void startHeartbeat() {
+        final Scoreboard.Slot slot = Scoreboard.getCurrentSlot();
+        new Timer("Scoreboard heartbeat",true).scheduleAtFixedRate(new TimerTask() {
+            public void run() {
+                slot.heartbeat();
+            }
+        }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL);
     }
 
     /**
      * Worker thread main code.
      *
+     * <p>
+     * The channel is in the blocking mode. Override this method to switch it to the non-blocking mode
+     * and accept connections with a {@link java.nio.channels.Selector}. By default, this method
+     * delegates to {@link #worker(ServerSocket)}.
+     *
+     * @param channel
+     *      The server socket channel that the frontend process created.
+     */
+    protected void worker(ServerSocketChannel channel) throws Exception {
+        worker(channel.socket());
+    }
+
+    /**
+     * Worker thread main code.
+     *
+     * <p>
+     * By default, this method accepts connections and handles each one of them on its own thread
+     * obtained from {@link #createConnectionExecutor()}, by calling {@link #handle(Socket)}.
+     * Subclasses need to override either this method or {@link #handle(Socket)}.
+     *
      * @param ss
      *      The server socket that the frontend process created.
      */
-    protected abstract void worker(ServerSocket ss) throws Exception;
+    protected void worker(ServerSocket ss) throws Exception {
+        ExecutorService executor = createConnectionExecutor();
+        Scoreboard.Slot slot = Scoreboard.getCurrentSlot();
+        ready();
+        while(true) {
+            Socket s;
+            try {
+                s = ss.accept();
+            } catch (IOException e) {
+                if(draining)
+                    return;     // closed by stopAccepting()
+                throw e;
+            }
+            serve(s,executor,slot);
+        }
+    }
 
     /**
-     * Recreates a bound {@link ServerSocket} on the given file descriptor.
+     * Worker thread main code when {@link #isDispatch()} is true.
+     *
+     * <p>
+     * By default, this handles each connection on its own thread just like {@link #worker(ServerSocket)} does.
+     * Once the frontend stops sending connections, this method waits for the connections in progress to complete,
+     * then returns.
      */
-    private ServerSocket recreateServerSocket(int fdn) throws Exception {
-        // create a properly populated FileDescriptor
-        FileDescriptor fd = new FileDescriptor();
-        Field $fd = FileDescriptor.class.getDeclaredField("fd");
-        $fd.setAccessible(true);
-        $fd.set(fd,fdn);
+    protected void worker(DispatchQueue connections) throws Exception {
+        ExecutorService executor = createConnectionExecutor();
+        Scoreboard.Slot slot = Scoreboard.getCurrentSlot();
+        ready();
+        SocketChannel ch;
+        while((ch=connections.take())!=null)
+            serve(ch.socket(),executor,slot);
 
-        // now create a PlainSocketImpl
-        Class $PlainSocketImpl = Class.forName("java.net.PlainSocketImpl");
-        Constructor $init = $PlainSocketImpl.getDeclaredConstructor(FileDescriptor.class);
-        $init.setAccessible(true);
-        SocketImpl socketImpl = (SocketImpl)$init.newInstance(fd);
+        LOGGER.fine("No more connections from the frontend");
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE,TimeUnit.MILLISECONDS);
+    }
 
-        // then wrap that into ServerSocket
-        ServerSocket ss = new ServerSocket();
-        ss.bind(new InetSocketAddress(0));
-        Field $impl = ServerSocket.class.getDeclaredField("impl");
-        $impl.setAccessible(true);
-        $impl.set(ss,socketImpl);
-        return ss;
+    private void serve(final Socket s, ExecutorService executor, final Scoreboard.Slot slot) {
+        slot.opened();
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    handle(s);
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to handle a connection from "+s.getRemoteSocketAddress(), e);
+                } finally {
+                    slot.closed();
+                    try {
+                        s.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Serves one connection accepted by the default {@link #worker(ServerSocket)} implementation.
+     *
+     * <p>
+     * This method runs on its own thread, so it can freely block. The socket is closed
+     * when this method returns.
+     *
+     * <p>
+     * Subclasses need to override either this method or {@link #worker(ServerSocket)}. The default implementation
+     * fails, so a connection that reaches it is logged and closed.
+     */
+    protected void handle(Socket s) throws Exception {
+        throw new UnsupportedOperationException(getClass()+" needs to override either worker(ServerSocket) or handle(Socket)");
+    }
+
+    /**
+     * Creates the {@link ExecutorService} that runs {@link #handle(Socket)}.
+     *
+     * <p>
+     * On JDK 21 and later, this is one virtual thread per connection, so a worker can serve
+     * a large number of slow clients at once. On older JDKs, this falls back to a bounded pool of
+     * platform threads, whose size is controlled by the <tt>com.sun.akuma.NetworkServer.maxThreads</tt>
+     * system property. When all of them are busy, connections get handled on the accepting thread,
+     * which stops accepting new connections until it's done.
+     */
+    protected ExecutorService createConnectionExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            // pre JDK 21
+        } catch (InvocationTargetException e) {
+            // JDK 19 and 20 need --enable-preview
+        } catch (IllegalAccessException e) {
+            // shouldn't happen
+        }
+
+        int n = getMaxThreads();
+        return new ThreadPoolExecutor(n,n,60,TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static int getMaxThreads() {
+        return Integer.getInteger(NetworkServer.class.getName()+".maxThreads",256);
     }
 
     private static final Logger LOGGER = Logger.getLogger(NetworkServer.class.getName());
-    private static final int SIGTERM = 15;
-    private static final String MODE_PROPERTY = NetworkServer.class.getName() + ".mode";
+    private static final long HEARTBEAT_INTERVAL = 1000;
+    private static final long DEFAULT_DRAIN_TIMEOUT = 30*1000;
+    private static final long DRAIN_POLL_INTERVAL = 100;
+    private static final long DRAIN_REPORT_INTERVAL = 1000;
+    private static final int SHUT_RD = 0;
+    // these values are Linux specific
+    private static final int SOL_SOCKET = 1;
+    private static final int SO_REUSEPORT = 15;
+    private static final String[] NUMA_OPTIONS = {"-XX:+UseNUMA","-XX:+AlwaysPreTouch"};
+    private static final int F_SETFD = 2;
+    private static final int FD_CLOEXEC = 1;
+    private static final int F_DUPFD_CLOEXEC = 1030;
+    private static final int EIO = 5;
+    /**
+     * {@link WorkerConfig} entry that tells workers the file descriptors of the listening sockets other than stdin.
+     */
+    private static final String LISTENERS_KEY = NetworkServer.class.getName() + ".listeners";
+    private static final String ADD_OPENS = "--add-opens=java.base/sun.nio.ch=ALL-UNNAMED";
+    /*package*/ static final String MODE_PROPERTY = NetworkServer.class.getName() + ".mode";
 }
@@ -0,0 +1,401 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Periodically samples the resource usage of the workers of a {@link WorkerPool} from <tt>/proc</tt>,
+ * so that a worker that's hot or leaking can be spotted without attaching a profiler to it.
+ *
+ * <p>
+ * The sampler keeps <tt>/proc/PID/stat</tt>, <tt>statm</tt>, <tt>io</tt>, and <tt>task/TID/status</tt> of each worker open,
+ * and re-reads them into the same buffer and the same {@link ProcessStats}, so sampling doesn't create garbage
+ * in the frontend. Holding the files open also guarantees that a reused PID is never mistaken for the worker.
+ *
+ * <p>
+ * The samples are available as the <tt>com.sun.akuma:type=ProcessSampler</tt> MXBean once {@link #register()}ed,
+ * which can be looked at with <tt>jconsole</tt> or any other JMX client.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ProcessSampler implements ProcessSamplerMXBean {
+    private final WorkerPool pool;
+    private final int[] pids;
+    private final Probe[] probes;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private final long[] fields = new long[STAT_FIELDS];
+    private final long[] values = new long[KEYS.length];
+    private long interval = 5000;
+
+    public ProcessSampler(WorkerPool pool) {
+        this.pool = pool;
+        int n = pool.getScoreboard().size();
+        this.pids = new int[n];
+        this.probes = new Probe[n];
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Sets the interval between samples in milliseconds. Defaults to 5 seconds.
+     */
+    public ProcessSampler setInterval(long interval) {
+        this.interval = interval;
+        return this;
+    }
+
+    /**
+     * Starts sampling in a background thread.
+     */
+    public void start() {
+        Thread t = new Thread("ProcessSampler") {
+            @Override
+            public void run() {
+                while(true) {
+                    sample();
+                    try {
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Exposes the samples as the <tt>com.sun.akuma:type=ProcessSampler</tt> MXBean.
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Samples all the running workers once.
+     */
+    public synchronized void sample() {
+        pool.getPids(pids);
+        long now = System.nanoTime();
+        for( int i=0; i<pids.length; i++ ) {
+            Probe p = probes[i];
+            if(p!=null && p.stats.pid!=pids[i]) {
+                p.close();
+                p = probes[i] = null;
+            }
+            if(pids[i]==0)
+                continue;
+            try {
+                if(p==null)
+                    p = probes[i] = new Probe(i,pids[i]);
+                p.sample(now);
+            } catch (IOException e) {
+                // the worker is gone, which the pool will notice soon
+                LOGGER.log(Level.FINE, "Failed to sample the worker #"+i+" (pid="+pids[i]+")", e);
+                if(p!=null)
+                    p.close();
+                probes[i] = null;
+            }
+        }
+    }
+
+    public synchronized List<ProcessStats> getWorkers() {
+        List<ProcessStats> r = new ArrayList<ProcessStats>();
+        for (Probe p : probes)
+            if(p!=null && p.sampled)
+                r.add(new ProcessStats(p.stats));
+        return r;
+    }
+
+    public String getReport() {
+        StringBuilder buf = new StringBuilder(ProcessStats.HEADER).append('\n');
+        for (ProcessStats s : getWorkers())
+            buf.append(s).append('\n');
+        return buf.toString();
+    }
+
+    /**
+     * Samples an arbitrary process once. The CPU usage isn't available from a single sample.
+     */
+    public static ProcessStats sample(int pid) throws IOException {
+        ProcessSampler s = new ProcessSampler();
+        Probe p = s.new Probe(-1,pid);
+        try {
+            p.sample(System.nanoTime());
+            return p.stats;
+        } finally {
+            p.close();
+        }
+    }
+
+    private ProcessSampler() {
+        this.pool = null;
+        this.pids = null;
+        this.probes = null;
+    }
+
+    /**
+     * Open files of one worker, and its latest sample.
+     */
+    private final class Probe {
+        private final File dir;
+        private final RandomAccessFile stat, statm, io;
+        /**
+         * <tt>/proc/PID/task/TID/status</tt> of each thread, as context switches are counted per thread.
+         */
+        private RandomAccessFile[] tasks = new RandomAccessFile[0];
+        private int samplesSinceScan;
+        private final ProcessStats stats;
+        private boolean sampled;
+        private long lastTicks, lastTime;
+
+        Probe(int slot, int pid) throws IOException {
+            dir = new File("/proc/"+pid);
+            stats = new ProcessStats(slot,pid);
+            stat = new RandomAccessFile(new File(dir,"stat"),"r");
+            statm = open(new File(dir,"statm"));
+            // only readable by the owner
+            io = open(new File(dir,"io"));
+        }
+
+        private RandomAccessFile open(File f) {
+            try {
+                return new RandomAccessFile(f,"r");
+            } catch (FileNotFoundException e) {
+                LOGGER.log(Level.FINE, "Failed to open "+f, e);
+                return null;
+            }
+        }
+
+        void sample(long now) throws IOException {
+            ProcessStats s = stats;
+
+            // pid (comm) state ppid ..., where comm can contain anything including spaces and parentheses
+            int len = read(stat);
+            int start = len;
+            while(start>0 && buf[start-1]!=')')
+                start--;
+            parseFields(start,len,3);
+            long ticks = fields[14]+fields[15];
+            s.cpuTime = ticks*1000/CLK_TCK;
+            if(lastTime!=0 && now>lastTime)
+                s.cpuUsage = (double)(ticks-lastTicks)/CLK_TCK*1000000000L/(now-lastTime);
+            lastTicks = ticks;
+            lastTime = now;
+            s.threads = fields[20];
+            s.minorFaults = fields[10];
+            s.majorFaults = fields[12];
+
+            // size resident shared text lib data dt, in pages
+            if(statm!=null) {
+                parseFields(0,read(statm),1);
+                s.virtualMemory = fields[1]*PAGE_SIZE;
+                s.residentMemory = fields[2]*PAGE_SIZE;
+                s.sharedMemory = fields[3]*PAGE_SIZE;
+            } else {
+                s.virtualMemory = fields[23];
+                s.residentMemory = fields[24]*PAGE_SIZE;
+                s.sharedMemory = -1;
+            }
+
+            // threads come and go, but rescanning them on every sample would create garbage
+            if(fields[20]!=tasks.length || ++samplesSinceScan>=RESCAN_INTERVAL)
+                scanTasks();
+            s.voluntaryContextSwitches = s.involuntaryContextSwitches = 0;
+            for( int i=0; i<tasks.length; i++ ) {
+                if(tasks[i]==null)  continue;
+                try {
+                    parseKeyed(tasks[i]);
+                } catch (IOException e) {
+                    // the thread has exited
+                    closeQuietly(tasks[i]);
+                    tasks[i] = null;
+                    continue;
+                }
+                s.voluntaryContextSwitches += values[0];
+                s.involuntaryContextSwitches += values[1];
+            }
+            parseKeyed(io);
+            s.readSyscalls = values[2];
+            s.writeSyscalls = values[3];
+            s.readBytes = values[4];
+            s.writeBytes = values[5];
+
+            sampled = true;
+        }
+
+        private void scanTasks() {
+            for (RandomAccessFile f : tasks)
+                closeQuietly(f);
+            String[] tids = new File(dir,"task").list();
+            tasks = new RandomAccessFile[tids!=null ? tids.length : 0];
+            for( int i=0; i<tasks.length; i++ )
+                tasks[i] = open(new File(dir,"task/"+tids[i]+"/status"));
+            samplesSinceScan = 0;
+        }
+
+        void close() {
+            closeQuietly(stat);
+            closeQuietly(statm);
+            closeQuietly(io);
+            for (RandomAccessFile f : tasks)
+                closeQuietly(f);
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile f) {
+        if(f==null)     return;
+        try {
+            f.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Reads a whole /proc file into {@link #buf}. The kernel regenerates the content when it's read from the start.
+     */
+    private int read(RandomAccessFile f) throws IOException {
+        f.seek(0);
+        int len = 0;
+        int n;
+        while(len<buf.length && (n=f.read(buf,len,buf.length-len))>0)
+            len += n;
+        return len;
+    }
+
+    /**
+     * Parses space-separated numbers into {@link #fields}, indexed by the field number of proc(5).
+     */
+    private void parseFields(int start, int end, int first) {
+        int field = first;
+        int i = start;
+        while(i<end && field<fields.length) {
+            while(i<end && buf[i]==' ')
+                i++;
+            if(i==end)  break;
+            int j = i;
+            while(j<end && buf[j]!=' ' && buf[j]!='\n')
+                j++;
+            fields[field++] = parseLong(i,j);
+            i = j+1;
+        }
+    }
+
+    /**
+     * Parses lines like "name: value" into {@link #values}, indexed by {@link #KEYS}.
+     * Values of the keys not found are -1.
+     */
+    private void parseKeyed(RandomAccessFile f) throws IOException {
+        int len = f!=null ? read(f) : 0;
+        for( int k=0; k<KEYS.length; k++ )
+            values[k] = -1;
+        int i = 0;
+        while(i<len) {
+            int eol = i;
+            while(eol<len && buf[eol]!='\n')
+                eol++;
+            for( int k=0; k<KEYS.length; k++ )
+                if(startsWith(i,eol,KEYS[k]))
+                    values[k] = parseLong(i+KEYS[k].length,eol);
+            i = eol+1;
+        }
+    }
+
+    private boolean startsWith(int start, int end, byte[] prefix) {
+        if(end-start<prefix.length)     return false;
+        for( int i=0; i<prefix.length; i++ )
+            if(buf[start+i]!=prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Parses a decimal number, ignoring anything that isn't a digit. The buffer is ASCII.
+     */
+    private long parseLong(int start, int end) {
+        long r = 0;
+        boolean negative = false;
+        for( int i=start; i<end; i++ ) {
+            byte b = buf[i];
+            if(b=='-')
+                negative = true;
+            else if('0'<=b && b<='9')
+                r = r*10+(b-'0');
+        }
+        return negative ? -r : r;
+    }
+
+    private static byte[][] keys(String... names) {
+        byte[][] r = new byte[names.length][];
+        for( int i=0; i<names.length; i++ )
+            r[i] = (names[i]+':').getBytes();
+        return r;
+    }
+
+    /**
+     * Keys of <tt>/proc/PID/status</tt> and <tt>/proc/PID/io</tt> we are interested in.
+     */
+    private static final byte[][] KEYS = keys("voluntary_ctxt_switches","nonvoluntary_ctxt_switches",
+            "syscr","syscw","read_bytes","write_bytes");
+
+    /**
+     * Number of samples after which threads of a process are rescanned even if their number hasn't changed.
+     */
+    private static final int RESCAN_INTERVAL = 12;
+
+    /**
+     * /proc/PID/status is the largest of the files, which is about 1.5KB.
+     */
+    private static final int BUFFER_SIZE = 8192;
+    /**
+     * We need up to rss, which is the 24th field of /proc/PID/stat.
+     */
+    private static final int STAT_FIELDS = 25;
+
+    private static final int _SC_CLK_TCK = 2;
+    private static final int _SC_PAGESIZE = 30;
+    private static final long CLK_TCK = LIBC.sysconf(_SC_CLK_TCK).longValue();
+    private static final long PAGE_SIZE = LIBC.sysconf(_SC_PAGESIZE).longValue();
+
+    public static final String OBJECT_NAME = "com.sun.akuma:type=ProcessSampler";
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessSampler.class.getName());
+}
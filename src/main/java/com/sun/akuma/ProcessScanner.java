@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Finds processes on this host by their arguments, in bulk.
+ *
+ * <p>
+ * Calling {@link JavaVMArguments#of(int)} for every process on the host is slow, as it goes
+ * through the OS detection and reads and decodes each command line from scratch. This class instead
+ * lists <tt>/proc</tt> once, reads the command lines with a few threads that each reuse one buffer,
+ * and only decodes those that carry one of the marker system properties. The environment
+ * is only read for the processes that match.
+ *
+ * <p>
+ * To find Akuma daemons and workers on the host:
+ * <pre>
+ * for (ProcessScanner.Entry e : ProcessScanner.akuma().scan())
+ *     System.out.println(e.getPid()+" "+e.getArguments());
+ * </pre>
+ *
+ * <p>
+ * This is only supported on Linux.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ProcessScanner {
+    private final Set<String> markers = new LinkedHashSet<String>();
+    private boolean readEnvironment;
+    private int parallelism = Math.min(Runtime.getRuntime().availableProcessors(),MAX_PARALLELISM);
+
+    /**
+     * Creates a scanner that matches processes that have any of the given system properties set,
+     * or all the processes if none is given.
+     */
+    public ProcessScanner(String... markers) {
+        Collections.addAll(this.markers,markers);
+    }
+
+    /**
+     * Creates a scanner that finds processes launched by {@link Daemon} and {@link NetworkServer}.
+     */
+    public static ProcessScanner akuma() {
+        return new ProcessScanner(Daemon.class.getName(),NetworkServer.MODE_PROPERTY);
+    }
+
+    /**
+     * Also match processes that have the given system property set.
+     */
+    public ProcessScanner addMarker(String systemProperty) {
+        markers.add(systemProperty);
+        return this;
+    }
+
+    /**
+     * Whether to read the environment variables of the matching processes, too.
+     * The environment of processes that belong to other users can't be read,
+     * in which case {@link Entry#getEnvironment()} returns null.
+     */
+    public ProcessScanner setReadEnvironment(boolean b) {
+        this.readEnvironment = b;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of threads that read <tt>/proc</tt>.
+     */
+    public ProcessScanner setParallelism(int n) {
+        if(n<1)     throw new IllegalArgumentException("parallelism must be positive: "+n);
+        this.parallelism = n;
+        return this;
+    }
+
+    /**
+     * Scans all the processes on this host.
+     *
+     * @return
+     *      matching processes, in the order of their PIDs.
+     */
+    public List<Entry> scan() throws IOException {
+        if(!"Linux".equals(System.getProperty("os.name")))
+            throw new UnsupportedOperationException("Unsupported Operating System "+System.getProperty("os.name"));
+
+        String[] names = new File("/proc").list();
+        if(names==null)
+            throw new IOException("Failed to list /proc");
+        List<Integer> pids = new ArrayList<Integer>(names.length);
+        for (String name : names) {
+            if(name.length()==0 || name.charAt(0)<'0' || name.charAt(0)>'9')
+                continue;
+            try {
+                pids.add(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                // not a process
+            }
+        }
+        Collections.sort(pids);
+        return scan(pids);
+    }
+
+    /**
+     * Scans the given processes.
+     *
+     * <p>
+     * Processes that don't exist (or exit during the scan) are silently skipped.
+     *
+     * @return
+     *      matching processes, in the order they are given.
+     */
+    public List<Entry> scan(List<Integer> pids) throws IOException {
+        int threads = Math.min(parallelism,(pids.size()+BATCH_SIZE-1)/BATCH_SIZE);
+        if(threads<=1)
+            return new Batch(pids).call();
+
+        // contiguous ranges so that the results can simply be concatenated in order
+        List<Batch> batches = new ArrayList<Batch>(threads);
+        int chunk = (pids.size()+threads-1)/threads;
+        for( int i=0; i<pids.size(); i+=chunk )
+            batches.add(new Batch(pids.subList(i,Math.min(i+chunk,pids.size()))));
+
+        ExecutorService es = Executors.newFixedThreadPool(batches.size());
+        try {
+            List<Entry> r = new ArrayList<Entry>();
+            for (Future<List<Entry>> f : es.invokeAll(batches))
+                r.addAll(f.get());
+            return r;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw (IOException)new InterruptedIOException().initCause(e);
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if(t instanceof IOException)    throw (IOException)t;
+            if(t instanceof RuntimeException)   throw (RuntimeException)t;
+            throw (IOException)new IOException("Failed to scan processes").initCause(t);
+        } finally {
+            es.shutdown();
+        }
+    }
+
+    /**
+     * Scans a range of processes on one thread with one buffer.
+     */
+    private final class Batch implements Callable<List<Entry>> {
+        private final List<Integer> pids;
+        private byte[] buf = new byte[8192];
+        private int len;
+
+        Batch(List<Integer> pids) {
+            this.pids = pids;
+        }
+
+        public List<Entry> call() throws IOException {
+            byte[][] patterns = new byte[markers.size()][];
+            int i=0;
+            for (String m : markers)
+                patterns[i++] = ("-D"+m).getBytes(JavaVMArguments.NATIVE_ENCODING);
+
+            List<Entry> r = new ArrayList<Entry>();
+            for (int pid : pids) {
+                if(!read("/proc/"+pid+"/cmdline") || len==0)
+                    continue;   // gone, or a kernel thread
+                if(patterns.length>0 && !matches(patterns))
+                    continue;
+
+                JavaVMArguments args = JavaVMArguments.parse(buf,len);
+                Map<String,String> env = null;
+                if(readEnvironment) {
+                    try {
+                        if(read("/proc/"+pid+"/environ"))
+                            env = parseEnvironment();
+                    } catch (IOException e) {
+                        // typically a process of another user
+                        LOGGER.log(Level.FINE, "Failed to read the environment of "+pid, e);
+                    }
+                }
+                r.add(new Entry(pid,args,env));
+            }
+            return r;
+        }
+
+        /**
+         * Reads the whole file into {@link #buf}, growing it as necessary.
+         *
+         * @return false if the file doesn't exist.
+         */
+        private boolean read(String path) throws IOException {
+            FileInputStream in;
+            try {
+                in = new FileInputStream(path);
+            } catch (IOException e) {
+                return false;
+            }
+            try {
+                len = 0;
+                int sz;
+                while((sz=in.read(buf,len,buf.length-len))>=0) {
+                    len += sz;
+                    if(len==buf.length) {
+                        byte[] bigger = new byte[buf.length*2];
+                        System.arraycopy(buf,0,bigger,0,len);
+                        buf = bigger;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                // the process exited while we were reading it
+                return false;
+            } finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Does the command line in {@link #buf} contain any of the "-Dname" or "-Dname=..." arguments?
+         */
+        private boolean matches(byte[][] patterns) {
+            int start=0;
+            for( int i=0; i<=len; i++ ) {
+                if(i==len || buf[i]==0) {
+                    for (byte[] p : patterns)
+                        if(startsWith(start,i,p))
+                            return true;
+                    start = i+1;
+                }
+            }
+            return false;
+        }
+
+        private boolean startsWith(int start, int end, byte[] p) {
+            if(end-start<p.length)      return false;
+            for( int j=0; j<p.length; j++ )
+                if(buf[start+j]!=p[j])  return false;
+            return end-start==p.length || buf[start+p.length]=='=';
+        }
+
+        private Map<String,String> parseEnvironment() throws IOException {
+            Map<String,String> env = new HashMap<String,String>();
+            for (String e : JavaVMArguments.parse(buf,len)) {
+                int eq = e.indexOf('=');
+                if(eq>0)
+                    env.put(e.substring(0,eq),e.substring(eq+1));
+            }
+            return env;
+        }
+    }
+
+    /**
+     * A process found by {@link ProcessScanner}.
+     */
+    public static final class Entry {
+        private final int pid;
+        private final JavaVMArguments arguments;
+        private final Map<String,String> environment;
+
+        Entry(int pid, JavaVMArguments arguments, Map<String,String> environment) {
+            this.pid = pid;
+            this.arguments = arguments;
+            this.environment = environment==null ? null : Collections.unmodifiableMap(environment);
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        /**
+         * Arguments of the process, as they are. Unlike {@link JavaVMArguments#of(int)},
+         * the marker system properties are kept.
+         */
+        public JavaVMArguments getArguments() {
+            return arguments;
+        }
+
+        /**
+         * Environment variables of the process, or null if they weren't read.
+         */
+        public Map<String,String> getEnvironment() {
+            return environment;
+        }
+
+        @Override
+        public String toString() {
+            return pid+" "+arguments;
+        }
+    }
+
+    /**
+     * Lists Akuma processes on this host.
+     */
+    public static void main(String[] args) throws IOException {
+        ProcessScanner scanner = args.length==0 ? akuma() : new ProcessScanner(args);
+        for (Entry e : scanner.scan())
+            System.out.println(e);
+    }
+
+    /**
+     * Number of processes below which a scan isn't worth another thread.
+     */
+    private static final int BATCH_SIZE = 64;
+    private static final int MAX_PARALLELISM = 8;
+
+    private static final Logger LOGGER = Logger.getLogger(ProcessScanner.class.getName());
+}
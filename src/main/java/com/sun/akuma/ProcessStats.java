@@ -0,0 +1,192 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+/**
+ * Resource usage of a worker process, as sampled by {@link ProcessSampler} from <tt>/proc</tt>.
+ *
+ * <p>
+ * Values that couldn't be read are -1.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class ProcessStats {
+    int slot;
+    int pid;
+    long cpuTime;
+    double cpuUsage;
+    long residentMemory;
+    long sharedMemory;
+    long virtualMemory;
+    long threads;
+    long minorFaults;
+    long majorFaults;
+    long voluntaryContextSwitches;
+    long involuntaryContextSwitches;
+    long readBytes;
+    long writeBytes;
+    long readSyscalls;
+    long writeSyscalls;
+
+    ProcessStats(int slot, int pid) {
+        this.slot = slot;
+        this.pid = pid;
+    }
+
+    ProcessStats(ProcessStats that) {
+        this.slot = that.slot;
+        this.pid = that.pid;
+        this.cpuTime = that.cpuTime;
+        this.cpuUsage = that.cpuUsage;
+        this.residentMemory = that.residentMemory;
+        this.sharedMemory = that.sharedMemory;
+        this.virtualMemory = that.virtualMemory;
+        this.threads = that.threads;
+        this.minorFaults = that.minorFaults;
+        this.majorFaults = that.majorFaults;
+        this.voluntaryContextSwitches = that.voluntaryContextSwitches;
+        this.involuntaryContextSwitches = that.involuntaryContextSwitches;
+        this.readBytes = that.readBytes;
+        this.writeBytes = that.writeBytes;
+        this.readSyscalls = that.readSyscalls;
+        this.writeSyscalls = that.writeSyscalls;
+    }
+
+    /**
+     * Slot of the worker in {@link WorkerPool}, or -1 if this isn't a worker.
+     */
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getPid() {
+        return pid;
+    }
+
+    /**
+     * CPU time spent in the user and the kernel mode since the process started, in milliseconds.
+     */
+    public long getCpuTime() {
+        return cpuTime;
+    }
+
+    /**
+     * CPU usage between the last two samples, where 1.0 means one CPU fully used.
+     */
+    public double getCpuUsage() {
+        return cpuUsage;
+    }
+
+    /**
+     * Bytes of memory resident in RAM.
+     */
+    public long getResidentMemory() {
+        return residentMemory;
+    }
+
+    /**
+     * Bytes of the resident memory that are backed by files, which other processes can share,
+     * such as jar files and the class data sharing archive.
+     */
+    public long getSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * Bytes of the address space.
+     */
+    public long getVirtualMemory() {
+        return virtualMemory;
+    }
+
+    public long getThreads() {
+        return threads;
+    }
+
+    public long getMinorFaults() {
+        return minorFaults;
+    }
+
+    /**
+     * Page faults that required reading from the disk.
+     */
+    public long getMajorFaults() {
+        return majorFaults;
+    }
+
+    /**
+     * Number of times the running threads of the process gave up the CPU to wait for something, such as I/O or a lock.
+     */
+    public long getVoluntaryContextSwitches() {
+        return voluntaryContextSwitches;
+    }
+
+    /**
+     * Number of times the running threads of the process were preempted, which indicates contention for the CPU.
+     */
+    public long getInvoluntaryContextSwitches() {
+        return involuntaryContextSwitches;
+    }
+
+    /**
+     * Bytes read from the storage.
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * Bytes written to the storage.
+     */
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+
+    /**
+     * Number of read system calls, including those on sockets.
+     */
+    public long getReadSyscalls() {
+        return readSyscalls;
+    }
+
+    /**
+     * Number of write system calls, including those on sockets.
+     */
+    public long getWriteSyscalls() {
+        return writeSyscalls;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%4d %7d %6.1f %10d %8d %8d %7d %8d %10d %10d %10d %10d",
+                slot, pid, cpuUsage*100, cpuTime, residentMemory/1024, sharedMemory/1024, threads, majorFaults,
+                voluntaryContextSwitches, involuntaryContextSwitches, readSyscalls, writeSyscalls);
+    }
+
+    /**
+     * Header line that matches {@link #toString()}.
+     */
+    public static final String HEADER = String.format("%4s %7s %6s %10s %8s %8s %7s %8s %10s %10s %10s %10s",
+            "slot", "pid", "cpu%", "cpu(ms)", "rss(KB)", "shr(KB)", "threads", "majflt", "vcsw", "ivcsw", "syscr", "syscw");
+}
@@ -0,0 +1,494 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Event-loop engine for {@link NetworkServer} workers.
+ *
+ * <p>
+ * A reactor runs one {@link Selector} per CPU core. Every selector accepts connections from all the
+ * listening channels, and a connection then stays on the loop that accepted it. Reads and writes
+ * go through direct {@link ByteBuffer}s that are pooled per loop, so the steady state doesn't
+ * allocate anything. Connections and traffic are recorded in the {@link Scoreboard}.
+ *
+ * <p>
+ * Subclasses implement {@link #onRead(Connection, ByteBuffer)}, which gets called on the event loop
+ * thread and therefore must not block. Call {@link #run(List)} from
+ * {@link NetworkServer#worker(List)}. See {@link EchoServer} source code as an example.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class Reactor {
+    private final int loops;
+    private final int bufferSize;
+    private final Scoreboard.Slot slot = Scoreboard.getCurrentSlot();
+
+    /**
+     * Creates a reactor with one event loop per core and 16KB buffers.
+     */
+    protected Reactor() {
+        this(Runtime.getRuntime().availableProcessors(), 16*1024);
+    }
+
+    /**
+     * @param loops
+     *      Number of event loop threads.
+     * @param bufferSize
+     *      Size of the pooled buffers. Data that {@link #onRead(Connection, ByteBuffer)} leaves unconsumed
+     *      is retained until more data arrives, so this is also the upper bound of such data.
+     */
+    protected Reactor(int loops, int bufferSize) {
+        this.loops = loops;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Called when data arrives on a connection.
+     *
+     * @param in
+     *      Buffer that holds the received data, ready to be read. Bytes that are left unread are
+     *      passed in again, followed by new data, the next time this method is called.
+     *      The buffer is only valid during this call.
+     */
+    protected abstract void onRead(Connection c, ByteBuffer in) throws IOException;
+
+    /**
+     * Called when a new connection is accepted.
+     */
+    protected void onOpen(Connection c) throws IOException {
+    }
+
+    /**
+     * Called when a connection is closed, either by the peer or via {@link Connection#close()}.
+     */
+    protected void onClose(Connection c) {
+    }
+
+    /**
+     * Accepts and serves connections from the given channel.
+     *
+     * <p>
+     * The current thread becomes one of the event loops. This method never returns normally.
+     */
+    public void run(ServerSocketChannel channel) throws IOException {
+        run(Collections.singletonList(channel));
+    }
+
+    /**
+     * Accepts and serves connections from all the given channels.
+     *
+     * <p>
+     * The current thread becomes one of the event loops. This method never returns normally.
+     */
+    public void run(List<ServerSocketChannel> channels) throws IOException {
+        for (ServerSocketChannel channel : channels)
+            channel.configureBlocking(false);
+
+        Loop[] all = start(channels,1);
+        slot.ready();
+        all[0].run();
+    }
+
+    /**
+     * Serves connections dispatched by the frontend. Connections are assigned to the event loops in turn.
+     *
+     * <p>
+     * The current thread receives connections. Once the frontend stops sending them, this method waits
+     * for the connections in progress to be closed, then returns, just like
+     * {@link NetworkServer#worker(DispatchQueue)} does.
+     */
+    public void run(DispatchQueue connections) throws IOException, InterruptedException {
+        Loop[] all = start(Collections.<ServerSocketChannel>emptyList(),0);
+        slot.ready();
+        SocketChannel ch;
+        for( int i=0; (ch=connections.take())!=null; i=(i+1)%all.length )
+            all[i].register(ch);
+
+        LOGGER.fine("No more connections from the frontend");
+        // a loop counts a connection as active before it takes it off the incoming queue, so check the queues first
+        while(hasIncoming(all) || slot.getActive()>0)
+            Thread.sleep(CLOSE_POLL_INTERVAL);
+    }
+
+    private static boolean hasIncoming(Loop[] all) {
+        for (Loop l : all)
+            if(!l.incoming.isEmpty())
+                return true;
+        return false;
+    }
+
+    /**
+     * Creates the event loops, and runs them on their own threads, except the first few.
+     */
+    private Loop[] start(List<ServerSocketChannel> channels, int from) throws IOException {
+        Loop[] all = new Loop[loops];
+        for( int i=0; i<loops; i++ )
+            all[i] = new Loop(channels);
+        for( int i=from; i<loops; i++ ) {
+            final Loop l = all[i];
+            Thread t = new Thread("Reactor loop #"+i) {
+                @Override
+                public void run() {
+                    try {
+                        l.run();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.SEVERE, "Event loop died", e);
+                    }
+                }
+            };
+            t.setDaemon(true);
+            t.start();
+        }
+        return all;
+    }
+
+    /**
+     * A connection served by the reactor.
+     *
+     * <p>
+     * Instances are confined to their event loop thread, so they must not be used from other threads.
+     */
+    public final class Connection {
+        public final SocketChannel channel;
+        private final Loop loop;
+        private final SelectionKey key;
+
+        /**
+         * Received data that {@link #onRead(Connection, ByteBuffer)} hasn't consumed yet, in the read mode.
+         */
+        private ByteBuffer carry;
+
+        /**
+         * Data waiting to be written, each in the read mode.
+         */
+        private final ArrayDeque<ByteBuffer> out = new ArrayDeque<ByteBuffer>();
+
+        /**
+         * Protocol-specific state, for the convenience of subclasses.
+         */
+        public Object attachment;
+
+        private Connection(Loop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = channel.register(loop.selector,SelectionKey.OP_READ,this);
+        }
+
+        /**
+         * Writes the remaining bytes of the given buffer.
+         *
+         * <p>
+         * Whatever can't be written right away gets copied into the pooled buffers and written
+         * later, so the caller can reuse the buffer as soon as this method returns. While there's
+         * pending output, the reactor stops reading from this connection.
+         */
+        public void write(ByteBuffer src) throws IOException {
+            if(out.isEmpty()) {
+                slot.bytesOut(channel.write(src));
+                if(!src.hasRemaining())
+                    return;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+
+            while(src.hasRemaining()) {
+                ByteBuffer tail = out.peekLast();
+                if(tail==null || tail.limit()==tail.capacity()) {
+                    tail = loop.take();
+                    tail.flip();
+                    out.addLast(tail);
+                }
+                // append to the tail buffer while keeping it in the read mode
+                int pos = tail.position();
+                tail.position(tail.limit()).limit(tail.capacity());
+                transfer(src,tail);
+                tail.limit(tail.position()).position(pos);
+            }
+        }
+
+        /**
+         * Closes this connection.
+         */
+        public void close() {
+            if(!channel.isOpen())   return;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            if(carry!=null) {
+                loop.give(carry);
+                carry = null;
+            }
+            while(!out.isEmpty())
+                loop.give(out.removeFirst());
+            slot.closed();
+            try {
+                onClose(this);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to close a connection", e);
+            }
+        }
+
+        private void onReadable() throws IOException {
+            ByteBuffer buf;
+            if(carry!=null) {
+                carry.compact();    // back to the write mode
+                buf = carry;
+                if(!buf.hasRemaining())
+                    throw new IOException("Unconsumed input exceeds the buffer size");
+            } else {
+                buf = loop.scratch;
+                buf.clear();
+            }
+
+            int n = channel.read(buf);
+            buf.flip();
+            if(n<0) {
+                close();
+                return;
+            }
+            if(n==0)    return;
+            slot.bytesIn(n);
+
+            onRead(this,buf);
+
+            if(!channel.isOpen())   return;
+            if(buf.hasRemaining()) {
+                if(carry==null) {
+                    carry = loop.take();
+                    carry.put(buf);
+                    carry.flip();
+                }
+            } else if(carry!=null) {
+                loop.give(carry);
+                carry = null;
+            }
+        }
+
+        private void onWritable() throws IOException {
+            while(!out.isEmpty()) {
+                ByteBuffer head = out.peekFirst();
+                slot.bytesOut(channel.write(head));
+                if(head.hasRemaining())
+                    return;     // wait for the next OP_WRITE
+                loop.give(out.removeFirst());
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    /**
+     * One event loop, which is confined to a single thread.
+     */
+    private final class Loop {
+        private final Selector selector;
+        /**
+         * Connections handed to this loop by {@link #register(SocketChannel)}.
+         */
+        private final Queue<SocketChannel> incoming = new ConcurrentLinkedQueue<SocketChannel>();
+        private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<ByteBuffer>();
+        private final ByteBuffer scratch = ByteBuffer.allocateDirect(bufferSize);
+
+        Loop(List<ServerSocketChannel> channels) throws IOException {
+            this.selector = Selector.open();
+            // every loop accepts from the same channels
+            for (ServerSocketChannel channel : channels)
+                channel.register(selector,SelectionKey.OP_ACCEPT);
+        }
+
+        ByteBuffer take() {
+            ByteBuffer b = pool.pollFirst();
+            if(b==null)
+                b = ByteBuffer.allocateDirect(bufferSize);
+            return b;
+        }
+
+        void give(ByteBuffer b) {
+            b.clear();
+            if(pool.size()<MAX_POOLED_BUFFERS)
+                pool.addFirst(b);
+        }
+
+        /**
+         * Hands a connection accepted elsewhere to this loop. Can be called from any thread.
+         */
+        void register(SocketChannel ch) {
+            incoming.add(ch);
+            selector.wakeup();
+        }
+
+        void run() throws IOException {
+            while(true) {
+                // a channel closed by another thread stays open until the selector deregisters it,
+                // so don't sleep indefinitely while the worker is draining
+                selector.select(SELECT_TIMEOUT);
+
+                SocketChannel ch;
+                while((ch=incoming.peek())!=null) {
+                    try {
+                        open(ch);
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Dropping a connection", e);
+                        ch.close();
+                    } finally {
+                        incoming.remove();
+                    }
+                }
+
+                Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+                while(itr.hasNext()) {
+                    SelectionKey key = itr.next();
+                    itr.remove();
+
+                    if(key.attachment()==null) {
+                        accept((ServerSocketChannel)key.channel());
+                        continue;
+                    }
+
+                    Connection c = (Connection)key.attachment();
+                    try {
+                        if(key.isWritable())
+                            c.onWritable();
+                        else if(key.isReadable())
+                            c.onReadable();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Dropping a connection", e);
+                        c.close();
+                    } catch (RuntimeException e) {
+                        LOGGER.log(Level.WARNING, "Failed to handle a connection", e);
+                        c.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Accepts a connection, if any. Failures are logged and don't stop the loop.
+         */
+        private void accept(ServerSocketChannel channel) {
+            SocketChannel ch;
+            try {
+                ch = channel.accept();
+            } catch (ClosedChannelException e) {
+                return; // the worker is draining
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to accept a connection", e);
+                if(isOutOfDescriptors(e)) {
+                    // the listener stays readable until a descriptor frees up, so don't spin on it
+                    try {
+                        Thread.sleep(ACCEPT_BACKOFF);
+                    } catch (InterruptedException x) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return;
+            }
+            if(ch==null)    return; // another loop got it first
+            try {
+                open(ch);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Dropping a connection", e);
+                try {
+                    ch.close();
+                } catch (IOException x) {
+                    // ignore
+                }
+            }
+        }
+
+        private void open(SocketChannel ch) throws IOException {
+            ch.configureBlocking(false);
+            Connection c = new Connection(this,ch);
+            slot.opened();
+            try {
+                onOpen(c);
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Dropping a connection", e);
+                c.close();
+            } catch (RuntimeException e) {
+                // a bug in one connection shouldn't take the whole loop down
+                LOGGER.log(Level.WARNING, "Failed to open a connection", e);
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Java doesn't expose errno, so EMFILE/ENFILE can only be recognized from the message.
+     */
+    private static boolean isOutOfDescriptors(IOException e) {
+        String msg = e.getMessage();
+        return msg!=null && msg.contains("Too many open files");   // also matches ENFILE's "... in system"
+    }
+
+    /**
+     * Copies as much as fits from src to dst.
+     */
+    private static void transfer(ByteBuffer src, ByteBuffer dst) {
+        if(src.remaining()<=dst.remaining()) {
+            dst.put(src);
+        } else {
+            int limit = src.limit();
+            src.limit(src.position()+dst.remaining());
+            dst.put(src);
+            src.limit(limit);
+        }
+    }
+
+    /**
+     * Number of idle buffers each loop keeps around.
+     */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+    /**
+     * Upper bound of how long a loop waits for events, in milliseconds.
+     */
+    private static final long SELECT_TIMEOUT = 500;
+    /**
+     * How often {@link #run(DispatchQueue)} checks if the connections in progress have been closed, in milliseconds.
+     */
+    private static final long CLOSE_POLL_INTERVAL = 100;
+    /**
+     * How long a loop stops accepting when the process or the system runs out of file descriptors, in milliseconds.
+     */
+    private static final long ACCEPT_BACKOFF = 100;
+
+    private static final Logger LOGGER = Logger.getLogger(Reactor.class.getName());
+}
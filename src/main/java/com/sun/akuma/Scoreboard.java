@@ -0,0 +1,468 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.EnumSet;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Memory-mapped file that lets {@link NetworkServer} worker processes report what they are doing.
+ *
+ * <p>
+ * The frontend creates the scoreboard before forking workers, and every worker is assigned
+ * a slot, which it finds through the system properties the frontend sets. Workers update their slots with
+ * atomic operations on the shared memory, so neither the workers nor the readers ever take a lock.
+ * The frontend, or any other process that maps the same file, can read the live load of all the workers
+ * at the cost of a few memory reads. Run this class with the scoreboard file as an argument to dump it.
+ *
+ * <p>
+ * Every slot occupies its own cache line, so workers don't slow each other down.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class Scoreboard {
+    private final File file;
+    private final int size;
+    /**
+     * Keeps the mapping alive.
+     */
+    private final MappedByteBuffer buffer;
+    private final long address;
+
+    private Scoreboard(File file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        this.address = Pointer.nativeValue(Native.getDirectBufferPointer(buffer));
+        if(getLong(address)!=MAGIC)
+            throw new IOException(file+" is not a scoreboard");
+        // slots are accessed by their addresses, so one beyond the end of the file would crash the JVM
+        long slots = getLong(address+8);
+        if(slots<0 || slots>(buffer.capacity()-HEADER_SIZE)/SLOT_SIZE)
+            throw new IOException(file+" is too short for "+slots+" slots");
+        this.size = (int)slots;
+    }
+
+    /**
+     * Creates a new scoreboard file with the given number of slots, all of them empty.
+     *
+     * <p>
+     * The file is created exclusively and readable only by the current user, so this
+     * method fails rather than follow a symlink or reuse a file that already exists.
+     */
+    public static Scoreboard create(File file, int slots) throws IOException {
+        FileChannel ch = FileChannel.open(file.toPath(),
+                EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        try {
+            long length = HEADER_SIZE+(long)slots*SLOT_SIZE;
+            ch.write(ByteBuffer.allocate(1),length-1);  // extend the file to its full size
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            buf.order(ByteOrder.nativeOrder());
+            buf.putLong(8,slots);
+            buf.putLong(0,MAGIC);
+            buf.force();
+            return new Scoreboard(file,buf);
+        } finally {
+            ch.close();     // the mapping stays valid
+        }
+    }
+
+    /**
+     * Maps an existing scoreboard file.
+     */
+    public static Scoreboard open(File file) throws IOException {
+        if(!file.isFile())
+            throw new FileNotFoundException(file.getPath());
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        try {
+            if(raf.length()<HEADER_SIZE || raf.length()>Integer.MAX_VALUE)
+                throw new IOException(file+" is not a scoreboard");
+            MappedByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            return new Scoreboard(file,buf);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Number of slots.
+     */
+    public int size() {
+        return size;
+    }
+
+    public Slot get(int index) {
+        if(index<0 || index>=size)
+            throw new IndexOutOfBoundsException(index+" is not in [0,"+size+")");
+        return new Slot(index,address+HEADER_SIZE+(long)index*SLOT_SIZE);
+    }
+
+    /**
+     * Gets the slot assigned to the current worker process.
+     *
+     * <p>
+     * If the current process isn't a worker, or it was launched without a scoreboard,
+     * this method returns a slot that isn't visible to anyone, so that callers can
+     * update it unconditionally.
+     */
+    public static synchronized Slot getCurrentSlot() {
+        if(current==null) {
+            String file = System.getProperty(FILE_PROPERTY);
+            Integer slot = Integer.getInteger(SLOT_PROPERTY);
+            if(file==null) {
+                // NetworkServer passes them through the worker configuration
+                WorkerConfig config = WorkerConfig.current();
+                file = config.getString(FILE_PROPERTY);
+                slot = config.getInt(SLOT_PROPERTY,-1);
+            }
+            try {
+                if(file!=null && slot!=null && slot>=0)
+                    current = open(new File(file)).get(slot);
+            } catch (IOException e) {
+                // fall through
+            }
+            if(current==null) {
+                long a = allocate(SLOT_SIZE);
+                for( int i=0; i<SLOT_SIZE; i+=8 )
+                    putLong(a+i,0);
+                current = new Slot(0,a);
+            }
+        }
+        return current;
+    }
+
+    private static Slot current;
+
+    /**
+     * Status of a worker, as seen by others.
+     */
+    public enum State {
+        /**
+         * No worker has been assigned to this slot yet, or it has died.
+         */
+        EMPTY,
+        /**
+         * The worker process has been launched, but it hasn't started serving yet.
+         */
+        STARTING,
+        /**
+         * The worker is serving, and has no connection in progress.
+         */
+        IDLE,
+        /**
+         * The worker is serving some connections.
+         */
+        BUSY,
+        /**
+         * The worker has stopped accepting connections, and is finishing the ones in progress before it exits.
+         */
+        DRAINING
+    }
+
+    /**
+     * One entry of the scoreboard, which corresponds to a worker process.
+     *
+     * <p>
+     * Only the worker itself and the frontend (while the worker isn't running) write to it.
+     * Counters are cumulative since the worker was launched.
+     */
+    public static final class Slot {
+        public final int index;
+        private final long address;
+
+        private Slot(int index, long address) {
+            this.index = index;
+            this.address = address;
+        }
+
+        public int getPid() {
+            return (int)get(PID);
+        }
+
+        public State getState() {
+            switch ((int)get(LIFECYCLE)) {
+            case LIFECYCLE_EMPTY:       return State.EMPTY;
+            case LIFECYCLE_STARTING:    return State.STARTING;
+            case LIFECYCLE_DRAINING:    return State.DRAINING;
+            default:                    return getActive()>0 ? State.BUSY : State.IDLE;
+            }
+        }
+
+        /**
+         * Total number of connections the worker has accepted.
+         */
+        public long getAccepted() {
+            return get(ACCEPTED);
+        }
+
+        /**
+         * Number of connections the worker is currently serving.
+         */
+        public long getActive() {
+            return get(ACTIVE);
+        }
+
+        public long getBytesIn() {
+            return get(BYTES_IN);
+        }
+
+        public long getBytesOut() {
+            return get(BYTES_OUT);
+        }
+
+        /**
+         * Time of the last {@link #heartbeat()} in {@link System#currentTimeMillis()}, or 0 if never.
+         */
+        public long getHeartbeat() {
+            return get(HEARTBEAT);
+        }
+
+        /**
+         * Called by the frontend right before launching a new worker into this slot.
+         */
+        /*package*/ void launching() {
+            for( int i=0; i<SLOT_SIZE; i+=8 )
+                set(i,0);
+            set(LIFECYCLE,LIFECYCLE_STARTING);
+        }
+
+        /**
+         * Called by the frontend once the PID of the new worker is known.
+         */
+        /*package*/ void launched(int pid) {
+            set(PID,pid);
+        }
+
+        /**
+         * Called by the frontend when the worker assigned to this slot has died.
+         */
+        /*package*/ void died() {
+            set(LIFECYCLE,LIFECYCLE_EMPTY);
+        }
+
+        /**
+         * Called by the worker when it starts accepting connections.
+         * Has no effect once the worker is draining.
+         */
+        public void ready() {
+            if(get(LIFECYCLE)==LIFECYCLE_DRAINING)
+                return;
+            set(PID,LIBC.getpid());
+            set(LIFECYCLE,LIFECYCLE_RUNNING);
+            heartbeat();
+        }
+
+        /**
+         * Called by the worker when it stops accepting connections to terminate.
+         */
+        public void draining() {
+            set(LIFECYCLE,LIFECYCLE_DRAINING);
+        }
+
+        /**
+         * Records that the worker is alive.
+         */
+        public void heartbeat() {
+            set(HEARTBEAT,System.currentTimeMillis());
+        }
+
+        /**
+         * Records a newly accepted connection.
+         */
+        public void opened() {
+            add(ACCEPTED,1);
+            add(ACTIVE,1);
+        }
+
+        /**
+         * Records the end of a connection recorded by {@link #opened()}.
+         */
+        public void closed() {
+            add(ACTIVE,-1);
+        }
+
+        public void bytesIn(long n) {
+            add(BYTES_IN,n);
+        }
+
+        public void bytesOut(long n) {
+            add(BYTES_OUT,n);
+        }
+
+        private long get(int offset) {
+            return getLong(address+offset);
+        }
+
+        private void set(int offset, long value) {
+            putLong(address+offset,value);
+        }
+
+        private void add(int offset, long delta) {
+            long a = address+offset;
+            long v;
+            do {
+                v = getLong(a);
+            } while(!compareAndSwapLong(a,v,v+delta));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("#%-3d pid=%-7d %-8s accepted=%-10d active=%-6d in=%-12d out=%-12d heartbeat=%s",
+                    index,getPid(),getState(),getAccepted(),getActive(),getBytesIn(),getBytesOut(),
+                    getHeartbeat()==0 ? "never" : new Date(getHeartbeat()));
+        }
+    }
+
+    /*
+     * Volatile and atomic access to the shared memory needs sun.misc.Unsafe before JDK 9. It's looked up
+     * reflectively, as javac warns about every reference to it, and these constant handles get inlined by the JIT.
+     */
+    private static final MethodHandle GET_LONG_VOLATILE;
+    private static final MethodHandle PUT_LONG_VOLATILE;
+    private static final MethodHandle COMPARE_AND_SWAP_LONG;
+    private static final MethodHandle ALLOCATE_MEMORY;
+
+    static {
+        try {
+            Class<?> c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            Object unsafe = f.get(null);
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            GET_LONG_VOLATILE = lookup.findVirtual(c,"getLongVolatile",
+                    MethodType.methodType(long.class,Object.class,long.class)).bindTo(unsafe);
+            PUT_LONG_VOLATILE = lookup.findVirtual(c,"putLongVolatile",
+                    MethodType.methodType(void.class,Object.class,long.class,long.class)).bindTo(unsafe);
+            COMPARE_AND_SWAP_LONG = lookup.findVirtual(c,"compareAndSwapLong",
+                    MethodType.methodType(boolean.class,Object.class,long.class,long.class,long.class)).bindTo(unsafe);
+            ALLOCATE_MEMORY = lookup.findVirtual(c,"allocateMemory",
+                    MethodType.methodType(long.class,long.class)).bindTo(unsafe);
+        } catch (ClassNotFoundException e) {
+            throw new Error(e);
+        } catch (NoSuchFieldException e) {
+            throw new Error(e);
+        } catch (NoSuchMethodException e) {
+            throw new Error(e);
+        } catch (IllegalAccessException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static long getLong(long address) {
+        try {
+            return (long)GET_LONG_VOLATILE.invokeExact((Object)null,address);
+        } catch (Throwable t) {
+            throw unexpected(t);
+        }
+    }
+
+    private static void putLong(long address, long value) {
+        try {
+            PUT_LONG_VOLATILE.invokeExact((Object)null,address,value);
+        } catch (Throwable t) {
+            throw unexpected(t);
+        }
+    }
+
+    private static boolean compareAndSwapLong(long address, long expected, long value) {
+        try {
+            return (boolean)COMPARE_AND_SWAP_LONG.invokeExact((Object)null,address,expected,value);
+        } catch (Throwable t) {
+            throw unexpected(t);
+        }
+    }
+
+    private static long allocate(long size) {
+        try {
+            return (long)ALLOCATE_MEMORY.invokeExact(size);
+        } catch (Throwable t) {
+            throw unexpected(t);
+        }
+    }
+
+    /**
+     * None of the Unsafe methods throw checked exceptions.
+     */
+    private static RuntimeException unexpected(Throwable t) {
+        if(t instanceof RuntimeException)   throw (RuntimeException)t;
+        if(t instanceof Error)              throw (Error)t;
+        throw new IllegalStateException(t);
+    }
+
+    /**
+     * System property, or {@link WorkerConfig} entry, that points to the scoreboard file in workers.
+     */
+    /*package*/ static final String FILE_PROPERTY = Scoreboard.class.getName()+".file";
+    /**
+     * System property, or {@link WorkerConfig} entry, that designates the slot of the worker.
+     */
+    /*package*/ static final String SLOT_PROPERTY = Scoreboard.class.getName()+".slot";
+
+    private static final long MAGIC = 0x414B554D41534231L; // "AKUMASB1"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 64;
+
+    // field offsets in a slot. they are all 8-byte aligned longs so that they can be accessed atomically
+    private static final int PID = 0;
+    private static final int LIFECYCLE = 8;
+    private static final int ACCEPTED = 16;
+    private static final int ACTIVE = 24;
+    private static final int BYTES_IN = 32;
+    private static final int BYTES_OUT = 40;
+    private static final int HEARTBEAT = 48;
+
+    private static final int LIFECYCLE_EMPTY = 0;
+    private static final int LIFECYCLE_STARTING = 1;
+    private static final int LIFECYCLE_RUNNING = 2;
+    private static final int LIFECYCLE_DRAINING = 3;
+
+    public static void main(String[] args) throws IOException {
+        Scoreboard sb = open(new File(args[0]));
+        for( int i=0; i<sb.size(); i++ )
+            System.out.println(sb.get(i));
+    }
+}
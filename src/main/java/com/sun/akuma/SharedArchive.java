@@ -0,0 +1,266 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Dynamic AppCDS archive shared by the JVMs that {@link Daemon} and {@link NetworkServer} launch.
+ *
+ * <p>
+ * Every JVM we launch runs the same code from the same class path, yet parses and verifies the same classes
+ * from scratch. A class data sharing archive lets them map the already processed classes instead, which
+ * makes them start faster and share the memory of those classes.
+ *
+ * <p>
+ * The first JVM launched without an archive is told to create one when it exits, with
+ * <tt>-XX:ArchiveClassesAtExit</tt>. JVMs launched after that use it with <tt>-XX:SharedArchiveFile</tt>.
+ * The archive is named after the JVM and the class path, including the size and the timestamp of
+ * each entry, so a new build or a new JVM gets a new archive, and the stale ones get deleted.
+ *
+ * <p>
+ * The directory has to belong to the current user with no access for anyone else, as an archive planted there
+ * would be loaded into every JVM. If it doesn't exist, it's created that way.
+ *
+ * <p>
+ * This requires JDK 13 or later, and a class path that consists of jar files. Otherwise this does nothing.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public final class SharedArchive {
+    private final File dir;
+    private final String name;
+    private final File file;
+    private final boolean supported;
+
+    /**
+     * PID of the process that's been told to create the archive, 0 if it's being launched, or -1 if none.
+     */
+    private int creator = -1;
+
+    /**
+     * Manages the archive for the class path of the current process in the given directory.
+     */
+    public SharedArchive(File dir) {
+        this(dir,System.getProperty("java.class.path",""));
+    }
+
+    /**
+     * Manages the archive for the given class path in the given directory.
+     */
+    public SharedArchive(File dir, String classPath) {
+        this.dir = dir;
+        this.name = getApplicationName();
+        this.file = new File(dir,name+"-"+computeKey(classPath)+".jsa");
+        this.supported = JavaVMArguments.getJavaVersion()>=13 && isArchivable(classPath);
+    }
+
+    /**
+     * Gets the archive file, which may not exist yet.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Adds the options to use or create the archive to the arguments of a JVM about to be launched.
+     *
+     * <p>
+     * Options previously added by this method are replaced. If the arguments already specify
+     * another archive, they are left untouched.
+     *
+     * @return
+     *      true if the JVM is told to create the archive. In that case, call {@link #launched(int)}
+     *      once the JVM is launched, or {@link #failed()} if it couldn't be.
+     */
+    public synchronized boolean apply(JavaVMArguments args) {
+        // arguments of the current process may have the options for this process
+        for (Iterator<String> itr = args.iterator(); itr.hasNext(); ) {
+            String arg = itr.next();
+            if(arg.equals(USE+file) || arg.equals(CREATE+file))
+                itr.remove();
+        }
+
+        if(!supported)
+            return false;
+        for (String arg : args)
+            if(arg.startsWith(USE) || arg.startsWith(CREATE) || arg.startsWith("-Xshare"))
+                return false;   // the user knows better
+
+        if(!isPrivateDirectory())
+            return false;
+
+        if(file.exists()) {
+            args.add(1,USE+file);
+            return false;
+        }
+
+        if(creator==0 || (creator>0 && LIBC.kill(creator,0)==0))
+            return false;   // someone else is already on it
+
+        deleteStaleArchives();
+        args.add(1,CREATE+file);
+        creator = 0;
+        return true;
+    }
+
+    /**
+     * Called after launching the JVM that {@link #apply(JavaVMArguments)} told to create the archive.
+     *
+     * @param pid
+     *      PID of the JVM.
+     */
+    public synchronized void launched(int pid) {
+        if(pid<=0)
+            throw new IllegalArgumentException("Invalid PID: "+pid);
+        creator = pid;
+        LOGGER.fine("PID "+pid+" will create the class data sharing archive "+file+" when it exits");
+    }
+
+    /**
+     * Called instead of {@link #launched(int)} if the JVM that {@link #apply(JavaVMArguments)} told
+     * to create the archive couldn't be launched, so that the next one gets to create it.
+     */
+    public synchronized void failed() {
+        creator = -1;
+    }
+
+    /**
+     * The JVM trusts the archive as much as the class path, and we delete files in the directory,
+     * so only use a directory that belongs to the current user and that nobody else can access.
+     * The directory is created with the mode 0700 if it doesn't exist.
+     */
+    private boolean isPrivateDirectory() {
+        Path p = dir.toPath();
+        try {
+            Path parent = p.toAbsolutePath().getParent();
+            if(parent!=null)
+                Files.createDirectories(parent);
+            Files.createDirectory(p,PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (FileAlreadyExistsException e) {
+            // check the existing one below
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to create "+dir, e);
+            return false;
+        }
+
+        try {
+            Map<String,Object> attrs = Files.readAttributes(p,"unix:uid,mode",LinkOption.NOFOLLOW_LINKS);
+            int mode = (Integer)attrs.get("mode");
+            if((mode&S_IFMT)==S_IFDIR && (Integer)attrs.get("uid")==LIBC.geteuid() && (mode&077)==0)
+                return true;
+            LOGGER.warning("Not using a class data sharing archive, as "+dir+" isn't a directory that only the current user can access");
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to check "+dir, e);
+        } catch (UnsupportedOperationException e) {
+            LOGGER.log(Level.FINE, "Can't tell who can access "+dir, e);
+        }
+        return false;
+    }
+
+    private void deleteStaleArchives() {
+        File[] files = dir.listFiles();
+        if(files==null)     return;
+        for (File f : files) {
+            String n = f.getName();
+            if(n.startsWith(name+"-") && n.endsWith(".jsa") && !f.equals(file)) {
+                LOGGER.fine("Deleting the stale class data sharing archive "+f);
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * The JVM refuses to archive classes loaded from directories, so the class path must consist of jar files.
+     */
+    private static boolean isArchivable(String classPath) {
+        for (String entry : classPath.split(File.pathSeparator)) {
+            String[] children = new File(entry).list();
+            if(children!=null && children.length>0) {
+                LOGGER.fine("Not using a class data sharing archive, as the class path contains the directory "+entry);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Name of the application, which archives of different class paths have in common.
+     */
+    private static String getApplicationName() {
+        String cmd = System.getProperty("sun.java.command","");
+        int sp = cmd.indexOf(' ');
+        String main = sp<0 ? cmd : cmd.substring(0,sp);
+        main = main.substring(main.lastIndexOf('/')+1).replaceAll("[^A-Za-z0-9_.]","_");
+        return main.length()==0 ? "akuma" : main;
+    }
+
+    /**
+     * Digest of everything that the validity of the archive depends on.
+     */
+    private static String computeKey(String classPath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            StringBuilder buf = new StringBuilder();
+            buf.append(System.getProperty("java.home")).append('\n');
+            buf.append(System.getProperty("java.vm.version")).append('\n');
+            for (String entry : classPath.split(File.pathSeparator)) {
+                File f = new File(entry);
+                buf.append(f.getAbsolutePath()).append(' ').append(f.length()).append(' ').append(f.lastModified()).append('\n');
+            }
+            byte[] digest = md.digest(buf.toString().getBytes("UTF-8"));
+
+            StringBuilder hex = new StringBuilder();
+            for( int i=0; i<8; i++ )
+                hex.append(String.format("%02x",digest[i]&0xFF));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static final String USE = "-XX:SharedArchiveFile=";
+    private static final String CREATE = "-XX:ArchiveClassesAtExit=";
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFDIR = 0040000;
+
+    private static final Logger LOGGER = Logger.getLogger(SharedArchive.class.getName());
+}
@@ -0,0 +1,188 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+import com.sun.jna.ptr.IntByReference;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Determines how a new Java VM gets launched from the current process.
+ *
+ * <p>
+ * {@link Daemon} and {@link NetworkServer} traditionally use {@code fork} followed by {@code execv}.
+ * When the current JVM has a big heap, {@code fork} spends a considerable amount of time copying
+ * page tables, and it fails outright on systems with strict memory overcommit. {@link #POSIX_SPAWN}
+ * avoids this by using {@code posix_spawn}, which on glibc is implemented with
+ * {@code clone(CLONE_VM|CLONE_VFORK)} and never duplicates the address space.
+ *
+ * <p>
+ * The strategy to use can be chosen by setting the <tt>com.sun.akuma.SpawnStrategy</tt> system property
+ * to either "fork" or "posix_spawn", or by overriding {@link Daemon#getSpawnStrategy()}.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public abstract class SpawnStrategy {
+    /**
+     * Launches a new process that runs the given executable with the given arguments.
+     * The new process inherits the environment variables, stdin, stdout, and stderr of the current process.
+     *
+     * @param exe
+     *      Full path of the executable to run.
+     * @return
+     *      PID of the newly created process if positive. Otherwise the negated error number.
+     */
+    public int spawn(String exe, JavaVMArguments args) {
+        return spawn(exe,args,-1);
+    }
+
+    /**
+     * Launches a new process that runs the given executable with the given arguments,
+     * with the given file descriptor as its stdin.
+     *
+     * @param stdin
+     *      File descriptor to be duplicated into the stdin of the new process, or -1 to leave
+     *      stdin as is. This is how the listening socket is passed to {@link NetworkServer} workers,
+     *      which then obtain it through {@link System#inheritedChannel()}.
+     * @see #spawn(String, JavaVMArguments)
+     */
+    public int spawn(String exe, JavaVMArguments args, int stdin) {
+        return spawn(exe,args,stdin,new int[0]);
+    }
+
+    /**
+     * Launches a new process that runs the given executable with the given arguments,
+     * with the given file descriptor as its stdin, and the given file descriptors inherited.
+     *
+     * <p>
+     * All the other file descriptors above stderr are closed in the new process, so that it doesn't
+     * hold on to the sockets, pipes and files that leaked into the current process from whoever launched it.
+     *
+     * @param keep
+     *      File descriptors that the new process inherits by the same numbers.
+     *      They need to be open without <tt>FD_CLOEXEC</tt>.
+     * @see #spawn(String, JavaVMArguments, int)
+     */
+    public abstract int spawn(String exe, JavaVMArguments args, int stdin, int[] keep);
+
+    /**
+     * Traditional {@code fork} + {@code execv}.
+     */
+    public static final SpawnStrategy FORK_EXEC = new SpawnStrategy() {
+        public int spawn(String exe, JavaVMArguments args, int stdin, int[] keep) {
+            StringArray sa = args.toStringArray();
+            int[] closed = FileDescriptors.rangesExcept(keep);
+            // the child can't afford JNA to look up the function for the first time, so do it here.
+            // dup2 onto itself is a no-op.
+            if(stdin>=0)
+                LIBC.dup2(stdin,stdin);
+            FileDescriptors.prepareCloseRanges();
+
+            int r = LIBC.fork();
+            if(r<0)
+                return -Native.getLastError();
+            if(r==0) {
+                if(stdin>=0 && LIBC.dup2(stdin,0)<0) {
+                    LIBC.perror("dup2 failed");
+                    System.exit(-1);
+                }
+                FileDescriptors.closeRanges(closed);
+                // with fork, we lose all the other critical threads, to exec to Java again
+                LIBC.execv(exe,sa);
+                System.err.println("exec failed");
+                LIBC.perror("initial exec failed");
+                System.exit(-1);
+            }
+            return r;
+        }
+
+        @Override
+        public String toString() {
+            return "fork";
+        }
+    };
+
+    /**
+     * {@code posix_spawn}, which doesn't copy the address space of the current process.
+     */
+    public static final SpawnStrategy POSIX_SPAWN = new SpawnStrategy() {
+        public int spawn(String exe, JavaVMArguments args, int stdin, int[] keep) {
+            // no code of ours runs in the child, so let its exec close the rest.
+            // this process keeps them, and spawning with this class is the only way we pass descriptors on
+            FileDescriptors.setCloseOnExec(FileDescriptors.rangesExcept(keep));
+
+            Memory actions = null;
+            if(stdin>=0) {
+                actions = new Memory(FILE_ACTIONS_SIZE);
+                LIBC.posix_spawn_file_actions_init(actions);
+                LIBC.posix_spawn_file_actions_adddup2(actions,stdin,0);
+            }
+            try {
+                IntByReference pid = new IntByReference();
+                int r = LIBC.posix_spawn(pid, exe, actions, null, args.toStringArray(), environ());
+                if(r!=0)
+                    return -r;
+                return pid.getValue();
+            } finally {
+                if(actions!=null)
+                    LIBC.posix_spawn_file_actions_destroy(actions);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "posix_spawn";
+        }
+    };
+
+    /**
+     * Gets the strategy selected by the system property, or {@link #FORK_EXEC} if none is specified.
+     */
+    public static SpawnStrategy getDefault() {
+        String s = System.getProperty(SpawnStrategy.class.getName());
+        if(s==null || s.equals(FORK_EXEC.toString()))
+            return FORK_EXEC;
+        if(s.equals(POSIX_SPAWN.toString()))
+            return POSIX_SPAWN;
+        throw new IllegalArgumentException("Unknown spawn strategy: "+s);
+    }
+
+    /**
+     * Gets the current value of the {@code environ} global variable, so that the new process
+     * sees the changes made via {@link CLibrary#setenv(String, String)}.
+     */
+    private static Pointer environ() {
+        return NativeLibrary.getInstance("c").getGlobalVariableAddress("environ").getPointer(0);
+    }
+
+    /**
+     * Generous upper bound of <tt>sizeof(posix_spawn_file_actions_t)</tt>, which is 80 bytes on 64bit glibc.
+     */
+    private static final int FILE_ACTIONS_SIZE = 256;
+}
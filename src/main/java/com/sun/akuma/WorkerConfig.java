@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Configuration that the frontend passes to each worker process at launch, out of band of its command line.
+ *
+ * <p>
+ * Passing everything as system properties would expose it in <tt>/proc/PID/cmdline</tt>, limit it to strings,
+ * and make the argument list grow with every setting. Instead, the frontend serializes this into an
+ * anonymous in-memory file (or a pipe where <tt>memfd_create</tt> isn't available) that the worker inherits,
+ * and only the number of that file descriptor is passed on the command line. The worker reads it once
+ * at startup with {@link #current()}.
+ *
+ * <p>
+ * Entries are either binary values, or file descriptors that the worker inherits, such as listening sockets.
+ * The latter are only passed by their numbers, so they need to stay open without <tt>FD_CLOEXEC</tt>
+ * in the frontend.
+ *
+ * @author Kohsuke Kawaguchi
+ * @see NetworkServer#configureWorkers(WorkerConfig)
+ */
+public final class WorkerConfig {
+    private final Map<String,byte[]> values = new LinkedHashMap<String,byte[]>();
+    private final Map<String,int[]> descriptors = new LinkedHashMap<String,int[]>();
+
+    public WorkerConfig() {
+    }
+
+    public WorkerConfig(WorkerConfig that) {
+        values.putAll(that.values);
+        descriptors.putAll(that.descriptors);
+    }
+
+    public WorkerConfig put(String key, byte[] value) {
+        values.put(key,value.clone());
+        return this;
+    }
+
+    public WorkerConfig put(String key, String value) {
+        values.put(key,value.getBytes(UTF8));
+        return this;
+    }
+
+    public WorkerConfig put(String key, int value) {
+        values.put(key,new byte[]{(byte)(value>>24),(byte)(value>>16),(byte)(value>>8),(byte)value});
+        return this;
+    }
+
+    /**
+     * Passes file descriptors that the worker inherits.
+     */
+    public WorkerConfig putDescriptors(String key, int... fds) {
+        descriptors.put(key,fds.clone());
+        return this;
+    }
+
+    /**
+     * @return
+     *      null if there's no such entry.
+     */
+    public byte[] get(String key) {
+        byte[] v = values.get(key);
+        return v!=null ? v.clone() : null;
+    }
+
+    public String getString(String key) {
+        byte[] v = values.get(key);
+        return v!=null ? new String(v,UTF8) : null;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        byte[] v = values.get(key);
+        if(v==null || v.length!=4)
+            return defaultValue;
+        return (v[0]&0xFF)<<24 | (v[1]&0xFF)<<16 | (v[2]&0xFF)<<8 | (v[3]&0xFF);
+    }
+
+    /**
+     * @return
+     *      null if there's no such entry.
+     */
+    public int[] getDescriptors(String key) {
+        int[] v = descriptors.get(key);
+        return v!=null ? v.clone() : null;
+    }
+
+    /**
+     * Keys of all the entries, both values and file descriptors.
+     */
+    public Set<String> keySet() {
+        Set<String> keys = new LinkedHashSet<String>(values.keySet());
+        keys.addAll(descriptors.keySet());
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /*package*/ byte[] toByteArray() {
+        try {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buf);
+            out.writeInt(MAGIC);
+            out.writeInt(values.size());
+            for (Map.Entry<String,byte[]> e : values.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                out.write(e.getValue());
+            }
+            out.writeInt(descriptors.size());
+            for (Map.Entry<String,int[]> e : descriptors.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().length);
+                for (int fd : e.getValue())
+                    out.writeInt(fd);
+            }
+            out.close();
+            return buf.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);    // impossible with a byte array
+        }
+    }
+
+    /*package*/ static WorkerConfig parse(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        if(data.length<4 || in.readInt()!=MAGIC)
+            throw new IOException("Not a worker configuration");
+        WorkerConfig config = new WorkerConfig();
+        for( int n=in.readInt(); n>0; n-- ) {
+            String key = in.readUTF();
+            byte[] v = new byte[readLength(in,1)];
+            in.readFully(v);
+            config.values.put(key,v);
+        }
+        for( int n=in.readInt(); n>0; n-- ) {
+            String key = in.readUTF();
+            int[] fds = new int[readLength(in,4)];
+            for( int i=0; i<fds.length; i++ )
+                fds[i] = in.readInt();
+            config.descriptors.put(key,fds);
+        }
+        return config;
+    }
+
+    /**
+     * Reads the number of elements that follow, each taking the given number of bytes,
+     * so that a corrupt length doesn't allocate more than the data could possibly hold.
+     */
+    private static int readLength(DataInputStream in, int size) throws IOException {
+        int len = in.readInt();
+        if(len<0 || len>in.available()/size)
+            throw new IOException("Corrupt worker configuration: "+len+" elements of "+size+" bytes with "+in.available()+" bytes left");
+        return len;
+    }
+
+    /**
+     * Writes this configuration into a new file descriptor to be inherited by a worker process.
+     * The caller passes its number as {@link #FD_PROPERTY} and closes it after launching the worker.
+     *
+     * <p>
+     * The descriptor has <tt>FD_CLOEXEC</tt> set, so that other processes launched in the mean time don't
+     * inherit it. The caller clears it right before launching the worker.
+     */
+    /*package*/ int open() throws IOException {
+        byte[] data = toByteArray();
+        int fd = memfd();
+        if(fd>=0) {
+            int n = LIBC.write(fd,data,data.length);
+            if(n!=data.length || LIBC.lseek(fd,new NativeLong(0),SEEK_SET).longValue()!=0) {
+                int err = Native.getLastError();
+                LIBC.close(fd);
+                throw new IOException("Failed to write the worker configuration: "+LIBC.strerror(err));
+            }
+            return fd;
+        }
+
+        // the whole thing needs to fit in the pipe, as nobody reads it until the worker starts
+        if(data.length>PIPE_CAPACITY)
+            throw new IOException("The worker configuration of "+data.length+" bytes doesn't fit in a pipe");
+        int[] fds = new int[2];
+        if(LIBC.pipe2(fds,O_CLOEXEC)!=0)
+            throw new IOException("Failed to create a pipe: "+LIBC.strerror(Native.getLastError()));
+        int n = LIBC.write(fds[1],data,data.length);
+        int err = Native.getLastError();
+        LIBC.close(fds[1]);
+        if(n!=data.length) {
+            LIBC.close(fds[0]);
+            throw new IOException("Failed to write the worker configuration: "+LIBC.strerror(err));
+        }
+        return fds[0];
+    }
+
+    private static int memfd() {
+        if(!memfdAvailable)
+            return -1;
+        try {
+            int fd = LIBC.memfd_create("akuma-worker-config",MFD_CLOEXEC);
+            if(fd>=0)
+                return fd;
+            LOGGER.fine("memfd_create failed: "+LIBC.strerror(Native.getLastError()));
+        } catch (UnsatisfiedLinkError e) {
+            LOGGER.log(Level.FINE, "memfd_create is unavailable", e);
+        }
+        memfdAvailable = false;
+        return -1;
+    }
+
+    private static volatile boolean memfdAvailable = true;
+
+    /**
+     * Reads the configuration to the end of the given file descriptor, then closes it.
+     */
+    /*package*/ static WorkerConfig read(int fd) throws IOException {
+        try {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while((n=LIBC.read(fd,buf,buf.length))!=0) {
+                if(n<0) {
+                    int err = Native.getLastError();
+                    if(err==EINTR)  continue;
+                    throw new IOException("Failed to read the worker configuration from fd "+fd+": "+LIBC.strerror(err));
+                }
+                data.write(buf,0,n);
+            }
+            return parse(data.toByteArray());
+        } finally {
+            LIBC.close(fd);
+        }
+    }
+
+    /**
+     * Gets the configuration that the frontend passed to the current worker process.
+     *
+     * @return
+     *      an empty configuration if the current process isn't a worker, or it was launched without one.
+     * @throws IllegalStateException
+     *      if the configuration couldn't be read.
+     */
+    public static synchronized WorkerConfig current() {
+        if(current==null) {
+            Integer fd = Integer.getInteger(FD_PROPERTY);
+            try {
+                current = fd!=null ? read(fd) : new WorkerConfig();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read the worker configuration",e);
+            }
+        }
+        return current;
+    }
+
+    private static WorkerConfig current;
+
+    /**
+     * System property that tells workers the file descriptor to read the configuration from.
+     */
+    /*package*/ static final String FD_PROPERTY = WorkerConfig.class.getName()+".fd";
+
+    private static final int MAGIC = 0x414B5743; // "AKWC"
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PIPE_CAPACITY = 65536;
+    private static final int SEEK_SET = 0;
+    private static final int MFD_CLOEXEC = 1;
+    private static final int O_CLOEXEC = 0x80000;
+    private static final int EINTR = 4;
+
+    private static final Logger LOGGER = Logger.getLogger(WorkerConfig.class.getName());
+}
@@ -0,0 +1,685 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.ptr.IntByReference;
+import sun.misc.Signal;
+import sun.misc.SignalHandler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Set of worker processes forked by the frontend of a {@link NetworkServer}.
+ *
+ * <p>
+ * The pool keeps the configured number of workers running. Dead workers are reaped upon <tt>SIGCHLD</tt>
+ * and respawned into the same slot. A worker that keeps dying shortly after it's launched is respawned
+ * with an exponentially increasing delay, so that a crash loop doesn't eat up the whole machine.
+ *
+ * <p>
+ * {@link #restart()} replaces all the workers without ever reducing the capacity. A replacement is
+ * launched into a spare slot first, and the old worker is only terminated once its replacement is ready
+ * to accept connections. Workers are replaced one at a time.
+ *
+ * <p>
+ * The number of workers can be changed with {@link #resize(int)}, or left to an {@link Autoscaler}
+ * that adjusts it to the load. Excess workers are terminated with <tt>SIGTERM</tt>.
+ *
+ * <p>
+ * A worker that receives <tt>SIGTERM</tt> stops accepting connections, and finishes the ones in progress
+ * before it exits. Workers that are still running a few seconds past {@link NetworkServer#getDrainTimeout()}
+ * get killed.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class WorkerPool {
+    private final NetworkServer server;
+    /**
+     * Arguments all the workers share, from which the arguments of each worker are derived.
+     */
+    private final JavaVMArguments.Snapshot arguments;
+    private final Scoreboard scoreboard;
+
+    /**
+     * Live workers and slots waiting to be respawned, indexed by the slot number.
+     * Slots that have neither are free.
+     */
+    private final List<Worker> workers = new ArrayList<Worker>();
+
+    /**
+     * Number of consecutive crashes of each slot, used to compute the back-off delay.
+     */
+    private final List<Integer> crashes = new ArrayList<Integer>();
+
+    /**
+     * If non-zero, the time when the slot is to be respawned.
+     */
+    private final List<Long> respawnAt = new ArrayList<Long>();
+
+    /**
+     * Incremented by {@link #restart()}. Workers launched before that are to be replaced.
+     */
+    private int generation;
+
+    /**
+     * Slot of the replacement being launched by a rolling restart, or -1 if none.
+     */
+    private int replacement = -1;
+
+    /**
+     * The worker that {@link #replacement} is going to replace, or null if it has died in the mean time.
+     */
+    private Worker replaced;
+
+    /**
+     * Workers that have been told to terminate, which we shouldn't respawn,
+     * and when they get killed if they haven't finished draining by then.
+     */
+    private final Map<Worker,Long> retired = new HashMap<Worker,Long>();
+
+    /**
+     * Number of workers the pool should be running.
+     */
+    private int size;
+
+    /**
+     * If non-null, adjusts {@link #size} to the load.
+     */
+    private Autoscaler autoscaler;
+
+    /**
+     * When the load was last sampled for {@link #autoscaler}.
+     */
+    private long lastSample;
+
+    /**
+     * Whether the initial set of workers has become ready. See {@link Daemon#notifyReady()}.
+     */
+    private boolean ready;
+
+    /**
+     * True once {@link #shutdown()} is called.
+     */
+    private boolean shuttingDown;
+
+    /**
+     * True if the pool has given up starting, after reporting the failure to the launcher.
+     */
+    private boolean failed;
+
+    /**
+     * @param scoreboard
+     *      Its size determines the maximum number of workers, including the spare slot used by {@link #restart()}.
+     */
+    /*package*/ WorkerPool(NetworkServer server, JavaVMArguments.Snapshot arguments, Scoreboard scoreboard) {
+        this.server = server;
+        this.arguments = arguments;
+        this.scoreboard = scoreboard;
+        for( int i=0; i<scoreboard.size(); i++ ) {
+            workers.add(null);
+            crashes.add(0);
+            respawnAt.add(0L);
+        }
+    }
+
+    /**
+     * A running worker process.
+     */
+    public static final class Worker {
+        /**
+         * Index of this worker in the pool, which is retained when the worker gets respawned.
+         */
+        public final int slot;
+        public final int pid;
+        /**
+         * When this worker was launched, in {@link System#currentTimeMillis()}.
+         */
+        public final long startTime;
+        /**
+         * Number of {@link WorkerPool#restart()}s that happened before this worker was launched.
+         */
+        public final int generation;
+
+        Worker(int slot, int pid, int generation) {
+            this.slot = slot;
+            this.pid = pid;
+            this.generation = generation;
+            this.startTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return "worker#"+slot+" (pid="+pid+")";
+        }
+    }
+
+    /**
+     * Gets the scoreboard the workers report to. Its slots correspond to {@link Worker#slot}.
+     */
+    public Scoreboard getScoreboard() {
+        return scoreboard;
+    }
+
+    /**
+     * Gets the currently running workers.
+     */
+    public synchronized List<Worker> getWorkers() {
+        List<Worker> r = new ArrayList<Worker>();
+        for (Worker w : workers)
+            if(w!=null)
+                r.add(w);
+        return Collections.unmodifiableList(r);
+    }
+
+    /**
+     * Copies the PID of the worker in each slot to the given array, or 0 for empty slots,
+     * without creating garbage like {@link #getWorkers()} does.
+     */
+    /*package*/ synchronized void getPids(int[] pids) {
+        for( int i=0; i<workers.size(); i++ ) {
+            Worker w = workers.get(i);
+            pids[i] = w!=null ? w.pid : 0;
+        }
+    }
+
+    /**
+     * Gets the number of workers the pool is supposed to run.
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * Changes the number of workers. Workers are launched or terminated in the background.
+     *
+     * @throws IllegalArgumentException
+     *      if the scoreboard doesn't have enough slots for that many workers plus the spare one.
+     */
+    public synchronized void resize(int n) {
+        if(n<1 || n>=scoreboard.size())
+            throw new IllegalArgumentException("The number of workers must be between 1 and "+(scoreboard.size()-1)+": "+n);
+        if(size!=n)
+            LOGGER.info("Resizing the pool from "+size+" to "+n+" workers");
+        size = n;
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of {@link #restart()}s so far. Workers of older generations are being replaced.
+     */
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Whether {@link #shutdown()} has been called.
+     */
+    public synchronized boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    public synchronized Autoscaler getAutoscaler() {
+        return autoscaler;
+    }
+
+    /**
+     * Lets the given {@link Autoscaler} decide the number of workers, or stops autoscaling if null.
+     */
+    public synchronized void setAutoscaler(Autoscaler autoscaler) {
+        if(autoscaler!=null && autoscaler.getMax()>=scoreboard.size())
+            throw new IllegalArgumentException("The scoreboard only has room for "+(scoreboard.size()-1)+" workers");
+        this.autoscaler = autoscaler;
+        notifyAll();
+    }
+
+    /**
+     * Launches the initial set of workers.
+     */
+    /*package*/ synchronized void start(int n) {
+        size = n;
+        for( int i=0; i<n; i++ ) {
+            if(!launch(i)) {
+                // if we can't even launch the first set, something is seriously wrong
+                Daemon.notifyFailure("Failed to launch a worker process");
+                System.exit(-1);
+            }
+        }
+    }
+
+    /**
+     * Replaces all the running workers with newly launched ones, one by one, while keeping the listening socket.
+     * New workers pick up any changes made to the jar files and configuration files since they were launched.
+     *
+     * <p>
+     * This method returns immediately, and the replacement happens in the background.
+     */
+    public synchronized void restart() {
+        generation++;
+        LOGGER.info("Rolling restart of the workers to generation "+generation);
+        notifyAll();
+    }
+
+    private boolean launch(int slot) {
+        Scoreboard.Slot s = scoreboard.get(slot);
+        s.launching();
+        int pid = server.launchWorker(arguments,slot);
+        if(pid<0) {
+            LOGGER.severe("Forking a worker process failed: "+LIBC.strerror(-pid));
+            s.died();
+            return false;
+        }
+        s.launched(pid);
+        Worker w = new Worker(slot,pid,generation);
+        workers.set(slot,w);
+        respawnAt.set(slot,0L);
+        LOGGER.fine("Launched "+w);
+        return true;
+    }
+
+    /**
+     * Terminates all the workers. Each worker stops accepting connections, and finishes the ones in progress
+     * within {@link NetworkServer#getDrainTimeout()}. Workers still running after that get killed.
+     *
+     * <p>
+     * This method returns immediately, and {@link #supervise()} returns once all the workers are gone.
+     */
+    public synchronized void shutdown() {
+        if(shuttingDown)    return;
+        shuttingDown = true;
+        LOGGER.info("Shutting down the workers");
+        for (Worker w : workers)
+            if(w!=null && !retired.containsKey(w))
+                retire(w);
+        for( int i=0; i<respawnAt.size(); i++ )
+            respawnAt.set(i,0L);
+        notifyAll();
+    }
+
+    /**
+     * Watches over the worker processes and respawns dead ones.
+     *
+     * This method returns only after {@link #shutdown()}, once all the workers have exited.
+     * See {@link #hasFailed()} for why it shut down.
+     */
+    /*package*/ synchronized void supervise() throws InterruptedException {
+        try {
+            Signal.handle(new Signal("CHLD"), new SignalHandler() {
+                public void handle(Signal sig) {
+                    wakeUp();
+                }
+            });
+        } catch (IllegalArgumentException e) {
+            // we'll just poll
+            LOGGER.log(Level.FINE, "Failed to install the SIGCHLD handler", e);
+        }
+
+        long nextReport = 0;
+        while(true) {
+            reap();
+            long delay = killStragglers();
+
+            if(shuttingDown) {
+                int n = 0;
+                long active = 0;
+                for (Worker w : workers) {
+                    if(w==null)     continue;
+                    n++;
+                    active += scoreboard.get(w.slot).getActive();
+                }
+                if(n==0) {
+                    LOGGER.info("All the workers have exited");
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if(now>=nextReport) {
+                    LOGGER.info("Waiting for "+n+" workers to finish "+active+" connections");
+                    nextReport = now+DRAIN_REPORT_INTERVAL;
+                }
+                wait(min(delay,DRAIN_REPORT_INTERVAL));
+                continue;
+            }
+
+            delay = min(delay,respawn());
+            if(roll())
+                delay = min(delay,ROLL_POLL_INTERVAL);
+            else
+                scale();
+            if(autoscaler!=null)
+                delay = min(delay,SAMPLE_INTERVAL);
+            if(!ready && !checkReady())
+                delay = min(delay,ROLL_POLL_INTERVAL);
+            wait(min(delay,POLL_INTERVAL));
+        }
+    }
+
+    /**
+     * Minimum of two delays, where 0 means nothing is scheduled.
+     */
+    private static long min(long a, long b) {
+        if(a==0)    return b;
+        if(b==0)    return a;
+        return Math.min(a,b);
+    }
+
+    /**
+     * True if a worker died before the pool became ready while the launcher was waiting for it,
+     * in which case the pool has reported the failure to the launcher and shut itself down.
+     */
+    /*package*/ synchronized boolean hasFailed() {
+        return failed;
+    }
+
+    /**
+     * Kills retired workers that haven't finished draining in time.
+     *
+     * @return
+     *      Number of milliseconds until the next worker needs to be killed, or 0 if there's none.
+     */
+    private long killStragglers() {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        for (Map.Entry<Worker,Long> e : retired.entrySet()) {
+            long t = e.getValue();
+            if(t==Long.MAX_VALUE)
+                continue;   // already killed
+            if(t<=now) {
+                Worker w = e.getKey();
+                LOGGER.warning(w+" didn't exit in time after being told to terminate. Killing it with "
+                        +scoreboard.get(w.slot).getActive()+" connections in progress");
+                LIBC.kill(w.pid,SIGKILL);
+                e.setValue(Long.MAX_VALUE);
+                continue;
+            }
+            next = min(next,Math.max(1,t-now));
+        }
+        return next;
+    }
+
+    /**
+     * Lets the launcher of the daemon know once all the initial workers are accepting connections.
+     */
+    private boolean checkReady() {
+        int n = 0;
+        for( int i=0; i<workers.size(); i++ )
+            if(workers.get(i)!=null && isReady(scoreboard.get(i)))
+                n++;
+        if(n<size)
+            return false;
+        LOGGER.fine("All "+n+" workers are ready");
+        ready = true;
+        Daemon.notifyReady();
+        return true;
+    }
+
+    /**
+     * Samples the load for the {@link #autoscaler}, then launches or terminates workers to match {@link #size}.
+     */
+    private void scale() {
+        // slots with a worker that isn't going away, or waiting to be respawned
+        List<Integer> serving = new ArrayList<Integer>();
+        for( int i=0; i<workers.size(); i++ ) {
+            Worker w = workers.get(i);
+            if(w!=null ? retired.containsKey(w) : respawnAt.get(i)==0)
+                continue;
+            serving.add(i);
+        }
+
+        long now = System.currentTimeMillis();
+        if(autoscaler!=null && now-lastSample>=SAMPLE_INTERVAL) {
+            lastSample = now;
+            double busy = 0;
+            for (int i : serving)
+                if(workers.get(i)!=null)
+                    busy += autoscaler.getLoad(scoreboard.get(i).getActive());
+            int n = autoscaler.sample(serving.size(),busy,server.getListenQueueLength(),now);
+            if(n!=size) {
+                LOGGER.info(autoscaler+" resizes the pool from "+size+" to "+n+" workers ("
+                        +String.format("%.1f",busy)+" busy of "+serving.size()+")");
+                size = n;
+            }
+        }
+
+        for( int n=serving.size(); n<size; n++ ) {
+            int slot = freeSlot();
+            if(slot<0) {
+                LOGGER.warning("No free slot to launch a worker into");
+                break;
+            }
+            if(!launch(slot)) {
+                crashes.set(slot,crashes.get(slot)+1);
+                respawnAt.set(slot,now+backoff(crashes.get(slot)));
+            }
+        }
+        for( int n=serving.size(); n>size; n-- ) {
+            // terminate the ones in the higher slots first
+            int slot = serving.get(n-1);
+            Worker w = workers.get(slot);
+            if(w==null) {
+                respawnAt.set(slot,0L);    // just cancel the pending respawn
+                crashes.set(slot,0);
+                continue;
+            }
+            LOGGER.info("Terminating "+w+" to shrink the pool");
+            retire(w);
+        }
+    }
+
+    private synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    /**
+     * Collects the exit status of dead workers and schedules their respawn.
+     */
+    private void reap() {
+        IntByReference status = new IntByReference();
+        for( int i=0; i<workers.size(); i++ ) {
+            Worker w = workers.get(i);
+            if(w==null)     continue;
+
+            if(LIBC.waitpid(w.pid,status,WNOHANG)!=w.pid)
+                continue;   // still alive
+
+            workers.set(i,null);
+            scoreboard.get(i).died();
+
+            if(retired.remove(w)!=null || w==replaced) {
+                // it's been replaced, so the slot becomes free
+                LOGGER.fine(w+" "+describe(status.getValue())+" after being replaced");
+                if(w==replaced)     replaced = null;
+                crashes.set(i,0);
+                continue;
+            }
+
+            if(!ready && Daemon.notifyFailure(w+" "+describe(status.getValue())+" before it became ready")) {
+                // the launcher has reported the failure and exited, so don't leave the daemon running behind its back
+                LOGGER.severe(w+" "+describe(status.getValue())+" before the pool became ready. Giving up");
+                failed = true;
+                shutdown();
+                continue;
+            }
+
+            int n = System.currentTimeMillis()-w.startTime < MIN_UPTIME ? crashes.get(i)+1 : 0;
+            crashes.set(i,n);
+            long delay = backoff(n);
+            LOGGER.warning(w+" "+describe(status.getValue())+". Respawning in "+delay+"ms");
+            respawnAt.set(i,System.currentTimeMillis()+delay);
+        }
+    }
+
+    /**
+     * Respawns workers whose back-off delay has elapsed.
+     *
+     * @return
+     *      Number of milliseconds until the next scheduled respawn, or 0 if there's none.
+     */
+    private long respawn() {
+        long now = System.currentTimeMillis();
+        long next = 0;
+        for( int i=0; i<workers.size(); i++ ) {
+            long t = respawnAt.get(i);
+            if(t==0)    continue;
+            if(t<=now) {
+                if(launch(i))
+                    continue;
+                // failed to even fork. treat this like a crash
+                crashes.set(i,crashes.get(i)+1);
+                t = now+backoff(crashes.get(i));
+                respawnAt.set(i,t);
+            }
+            if(next==0 || t-now<next)
+                next = Math.max(1,t-now);
+        }
+        return next;
+    }
+
+    /**
+     * Drives the rolling restart one step forward.
+     *
+     * @return
+     *      true if a rolling restart is in progress.
+     */
+    private boolean roll() {
+        if(replacement<0) {
+            // pick the next worker to replace
+            Worker old = null;
+            for (Worker w : workers)
+                if(w!=null && w.generation<generation && !retired.containsKey(w)) {
+                    old = w;
+                    break;
+                }
+            if(old==null)
+                return false;   // all up to date
+
+            int slot = freeSlot();
+            if(slot<0) {
+                // the previously replaced worker may still be draining
+                if(retired.isEmpty())
+                    LOGGER.warning("No spare slot to roll "+old+" into");
+                return true;
+            }
+            if(!launch(slot)) {
+                crashes.set(slot,crashes.get(slot)+1);
+                respawnAt.set(slot,System.currentTimeMillis()+backoff(crashes.get(slot)));
+            }
+            replacement = slot;
+            replaced = old;
+            return true;
+        }
+
+        Worker w = workers.get(replacement);
+        if(w!=null && isReady(scoreboard.get(replacement))) {
+            // the replacement is accepting connections, so retire the old one
+            if(replaced!=null) {
+                LOGGER.info("Replaced "+replaced+" with "+w);
+                retire(replaced);
+            }
+            replacement = -1;
+            replaced = null;
+        }
+        return true;
+    }
+
+    /**
+     * Tells the worker to terminate, and stops sending it connections.
+     * The worker gets killed if it's still running a little after its drain timeout.
+     */
+    private void retire(Worker w) {
+        retired.put(w,System.currentTimeMillis()+server.getDrainTimeout()+KILL_GRACE);
+        server.workerRetired(w.slot);
+        LIBC.kill(w.pid,SIGTERM);
+    }
+
+    private static boolean isReady(Scoreboard.Slot s) {
+        Scoreboard.State st = s.getState();
+        return st==Scoreboard.State.IDLE || st==Scoreboard.State.BUSY;
+    }
+
+    /**
+     * Finds a slot that has neither a worker nor a pending respawn.
+     */
+    private int freeSlot() {
+        for( int i=0; i<workers.size(); i++ )
+            if(workers.get(i)==null && respawnAt.get(i)==0)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Computes the delay before respawning a slot that has crashed n times in a row.
+     */
+    /*package*/ static long backoff(int n) {
+        if(n==0)    return 0;
+        return Math.min(MIN_BACKOFF<<Math.min(n-1,20),MAX_BACKOFF);
+    }
+
+    /**
+     * Decodes the status reported by <tt>waitpid</tt>.
+     */
+    private static String describe(int status) {
+        int sig = status&0x7F;
+        if(sig==0)
+            return "exited with "+((status>>8)&0xFF);
+        return "was killed by signal "+sig;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(WorkerPool.class.getName());
+    private static final int WNOHANG = 1;
+    private static final int SIGTERM = 15;
+    private static final int SIGKILL = 9;
+    /**
+     * Workers that die sooner than this are considered to be crash-looping.
+     */
+    private static final long MIN_UPTIME = 10*1000;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 5*60*1000;
+    /**
+     * Safety net in case we miss <tt>SIGCHLD</tt>.
+     */
+    private static final long POLL_INTERVAL = 5*1000;
+    /**
+     * How often to check if the replacement worker has become ready.
+     */
+    private static final long ROLL_POLL_INTERVAL = 100;
+    /**
+     * How often the {@link #autoscaler} samples the load.
+     */
+    private static final long SAMPLE_INTERVAL = 1000;
+    /**
+     * How long a retired worker gets past its drain timeout to exit on its own before it gets killed.
+     */
+    private static final long KILL_GRACE = 5*1000;
+    /**
+     * How often the progress of {@link #shutdown()} is logged.
+     */
+    private static final long DRAIN_REPORT_INTERVAL = 1000;
+}
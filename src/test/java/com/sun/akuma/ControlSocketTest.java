@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import com.sun.jna.Memory;
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Runs the commands of {@link ControlSocket}, against a pool that has no workers.
+ * This lives in the package, as the control socket isn't public.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class ControlSocketTest extends TestCase {
+	private File file;
+	private WorkerPool pool;
+	private int drained;
+	private ControlSocket control;
+	private File socket;
+	
+	@Override
+	protected void setUp() throws Exception {
+		file = File.createTempFile("akuma", "scoreboard");
+		file.delete();
+		socket = new File(file.getPath()+".sock");
+		pool = new WorkerPool(null, null, Scoreboard.create(file, 4));
+		control = new ControlSocket(pool, new Runnable() {
+			public void run() {
+				drained++;
+				pool.shutdown();
+			}
+		});
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		file.delete();
+		socket.delete();
+	}
+	
+	public void testStatus() {
+		String r = control.execute("status");
+		Assert.assertTrue(r, r.startsWith("OK\n"));
+		Assert.assertTrue(r, r.endsWith("\n\n"));
+		Assert.assertTrue(r, r.contains("\nstate=running\n"));
+		Assert.assertTrue(r, r.contains("\nworkers=0\n"));
+	}
+	
+	public void testWorkers() {
+		Assert.assertEquals("OK\n\n", control.execute("workers"));
+	}
+	
+	public void testScale() {
+		Assert.assertEquals("OK\n\n", control.execute("scale  3"));
+		Assert.assertEquals(3, pool.getSize());
+		Assert.assertNull(pool.getAutoscaler());
+		
+		Assert.assertTrue(control.execute("scale three").startsWith("ERR not a number"));
+		// the spare slot is reserved for rolling restarts
+		Assert.assertTrue(control.execute("scale 4").startsWith("ERR "));
+		Assert.assertTrue(control.execute("scale").startsWith("ERR unknown command"));
+		Assert.assertTrue(control.execute("scale 1 2").startsWith("ERR unknown command"));
+		Assert.assertEquals(3, pool.getSize());
+	}
+	
+	public void testUnknown() {
+		Assert.assertEquals("ERR unknown command: bogus\n\n", control.execute("bogus"));
+		Assert.assertEquals("ERR unknown command: \n\n", control.execute(""));
+	}
+	
+	public void testDrainOnlyOnce() {
+		Assert.assertEquals("OK\n\n", control.execute("drain"));
+		Assert.assertTrue(control.execute("drain").startsWith("ERR already draining"));
+		Assert.assertEquals(1, drained);
+		Assert.assertTrue(control.execute("status").contains("\nstate=draining\n"));
+	}
+	
+	public void testServe() throws Exception {
+		control.bind(socket.getPath());
+		Assert.assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket.toPath())));
+		control.start();
+		
+		int fd = connect(socket);
+		Assert.assertTrue("connect failed", fd>=0);
+		try {
+			// several commands on one connection
+			byte[] request = "workers\nbogus\n".getBytes();
+			Assert.assertEquals(request.length, LIBC.write(fd, request, request.length));
+			String expected = "OK\n\nERR unknown command: bogus\n\n";
+			Assert.assertEquals(expected, read(fd, expected.length()));
+		} finally {
+			LIBC.close(fd);
+		}
+	}
+	
+	public void testInUse() throws Exception {
+		control.bind(socket.getPath());
+		try {
+			new ControlSocket(pool, null).bind(socket.getPath());
+			Assert.fail();
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().contains("in use"));
+		}
+		// the running one keeps its socket
+		Assert.assertTrue(socket.exists());
+	}
+	
+	public void testStaleSocket() throws Exception {
+		// a socket file that nobody listens on, as left behind by a killed server
+		int fd = LIBC.socket(1, 1, 0);
+		Assert.assertEquals(0, LIBC.bind(fd, address(socket), 2+socket.getPath().length()+1));
+		LIBC.close(fd);
+		Assert.assertTrue(socket.exists());
+		
+		control.bind(socket.getPath());
+		control.start();
+		fd = connect(socket);
+		Assert.assertTrue("connect failed", fd>=0);
+		LIBC.close(fd);
+	}
+	
+	private static Memory address(File f) {
+		byte[] name = f.getPath().getBytes();
+		Memory addr = new Memory(2+name.length+1);
+		addr.clear();
+		addr.setShort(0, (short)1/*AF_UNIX*/);
+		addr.write(2, name, 0, name.length);
+		return addr;
+	}
+	
+	private static int connect(File f) {
+		Memory addr = address(f);
+		int fd = LIBC.socket(1/*AF_UNIX*/, 1/*SOCK_STREAM*/, 0);
+		if(LIBC.connect(fd, addr, (int)addr.size())!=0) {
+			LIBC.close(fd);
+			return -1;
+		}
+		return fd;
+	}
+	
+	private static String read(int fd, int len) {
+		byte[] buf = new byte[len];
+		int n = 0;
+		while(n<len) {
+			byte[] chunk = new byte[len-n];
+			int r = LIBC.read(fd, chunk, chunk.length);
+			if(r<=0)	break;
+			System.arraycopy(chunk, 0, buf, n, r);
+			n += r;
+		}
+		return new String(buf, 0, n);
+	}
+}
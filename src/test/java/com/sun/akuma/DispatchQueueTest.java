@@ -0,0 +1,69 @@
+package com.sun.akuma;
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Lives in this package rather than com.sun.akuma.test, as the frontend side
+ * of the dispatching, {@link Dispatcher}, is package-private.
+ */
+public class DispatchQueueTest extends TestCase {
+	
+	public void testResetConnectionIsSkipped() throws Exception {
+		File f = File.createTempFile("akuma","scoreboard");
+		f.delete();
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		Dispatcher dispatcher = new Dispatcher(Scoreboard.create(f, 1));
+		int worker = dispatcher.open(0);
+		try{
+			listener.bind(new InetSocketAddress("127.0.0.1", 0));
+			dispatcher.start(Collections.singletonList(FileDescriptors.of(listener)));
+			int port = listener.socket().getLocalPort();
+			
+			// a client that resets the connection before the worker gets to it
+			Socket reset = new Socket("127.0.0.1", port);
+			reset.setSoLinger(true, 0);
+			reset.close();
+			Thread.sleep(200);
+			
+			Socket client = new Socket("127.0.0.1", port);
+			try{
+				client.getOutputStream().write('x');
+				DispatchQueue queue = new DispatchQueue(worker);
+				// the reset one may or may not come through, but it doesn't stop the next one
+				for (int i=0; i<2; i++) {
+					SocketChannel ch = queue.take();
+					Assert.assertNotNull(ch);
+					try{
+						InputStream in = ch.socket().getInputStream();
+						if(in.read()=='x')
+							return;
+					}catch(java.io.IOException e){
+						// the reset connection
+					}finally{
+						ch.close();
+					}
+				}
+				Assert.fail("The second connection wasn't dispatched");
+			}finally{
+				client.close();
+			}
+		}finally{
+			dispatcher.stop();
+			dispatcher.close(0);
+			LIBC.close(worker);
+			listener.close();
+			f.delete();
+		}
+	}
+	
+}
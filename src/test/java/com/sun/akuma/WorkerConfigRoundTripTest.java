@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+/**
+ * Passes {@link WorkerConfig} through a file descriptor the way the frontend does.
+ * This lives in the package, as the serialization isn't public.
+ *
+ * @author Kohsuke Kawaguchi
+ */
+public class WorkerConfigRoundTripTest extends TestCase {
+	private static WorkerConfig create() {
+		return new WorkerConfig()
+			.put("name", "w\u00f6rker")
+			.put("slot", 3)
+			.put("empty", new byte[0])
+			.putDescriptors("fds", 5, 7);
+	}
+	
+	private static void assertSame(WorkerConfig c) {
+		Assert.assertEquals("w\u00f6rker", c.getString("name"));
+		Assert.assertEquals(3, c.getInt("slot", 0));
+		Assert.assertEquals(0, c.get("empty").length);
+		Assert.assertTrue(Arrays.equals(new int[]{5, 7}, c.getDescriptors("fds")));
+		Assert.assertEquals(Arrays.asList("name", "slot", "empty", "fds"), Arrays.asList(c.keySet().toArray()));
+	}
+	
+	public void testParse() throws IOException {
+		assertSame(WorkerConfig.parse(create().toByteArray()));
+	}
+	
+	public void testNotAConfiguration() {
+		try {
+			WorkerConfig.parse(new byte[]{1, 2, 3, 4, 5});
+			Assert.fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+	
+	public void testCorruptLength() throws IOException {
+		assertCorrupt(-1, 0);
+		assertCorrupt(Integer.MAX_VALUE, 0);
+		assertCorrupt(0, -1);
+		assertCorrupt(0, 2);	// one descriptor follows
+	}
+	
+	/**
+	 * Parses a configuration of one value and one descriptor that claim the given lengths.
+	 */
+	private static void assertCorrupt(int valueLength, int fdsLength) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		out.write(Arrays.copyOf(new WorkerConfig().toByteArray(), 4));	// the magic
+		out.writeInt(1);
+		out.writeUTF("value");
+		out.writeInt(valueLength);
+		out.writeInt(1);
+		out.writeUTF("fds");
+		out.writeInt(fdsLength);
+		out.writeInt(5);
+		try {
+			WorkerConfig.parse(buf.toByteArray());
+			Assert.fail(valueLength+","+fdsLength);
+		} catch (IOException e) {
+			Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt worker configuration"));
+		}
+	}
+	
+	public void testThroughDescriptor() throws IOException {
+		int fd = create().open();
+		// not inherited by processes other than the worker being launched
+		Assert.assertEquals(FD_CLOEXEC, LIBC.fcntl(fd, F_GETFD, 0) & FD_CLOEXEC);
+		assertSame(WorkerConfig.read(fd));
+		// read() closes it
+		Assert.assertTrue(LIBC.fcntl(fd, F_GETFD, 0) < 0);
+	}
+	
+	private static final int F_GETFD = 1;
+	private static final int FD_CLOEXEC = 1;
+}
@@ -1,5 +1,7 @@
 package com.sun.akuma.test;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 
 import org.junit.Assert;
 import junit.framework.TestCase;
@@ -27,4 +29,42 @@ public class ArgvTest extends TestCase {
 		}
 	}
 	
+	public void testCurrentIsCopied() throws IOException{
+		JavaVMArguments a = JavaVMArguments.current();
+		JavaVMArguments b = JavaVMArguments.current();
+		Assert.assertEquals(a, b);
+		a.setSystemProperty("akuma.test", "1");
+		Assert.assertFalse(a.equals(b));
+		Assert.assertEquals(b, JavaVMArguments.current());
+	}
+	
+	public void testSnapshot() {
+		JavaVMArguments args = new JavaVMArguments(Arrays.asList(
+				"java", "-Da=1", "-Xmx64m", "-Db", "-Da=2", "Main", "arg"));
+		JavaVMArguments.Snapshot base = args.snapshot();
+		// the last one wins, just like it does for the JVM
+		Assert.assertEquals("2", base.getSystemProperty("a"));
+		Assert.assertEquals("", base.getSystemProperty("b"));
+		Assert.assertNull(base.getSystemProperty("c"));
+		
+		JavaVMArguments.Snapshot derived = base.withSystemProperty("a", "x")
+				.withSystemProperty("c", "3").withoutSystemProperty("b");
+		Assert.assertEquals("x", derived.getSystemProperty("a"));
+		Assert.assertNull(derived.getSystemProperty("b"));
+		Assert.assertEquals("3", derived.getSystemProperty("c"));
+		Assert.assertEquals(Arrays.asList("java", "-Dc=3", "-Xmx64m", "-Da=x", "Main", "arg"),
+				derived.toArguments());
+		
+		// the same as what the mutable list does, modulo the positions
+		args.setSystemProperty("a", "x");
+		args.setSystemProperty("c", "3");
+		args.removeSystemProperty("b");
+		Assert.assertEquals(new HashSet<String>(args),
+				new HashSet<String>(derived.toArguments()));
+		
+		// deriving doesn't affect the original
+		Assert.assertEquals(Arrays.asList("java", "-Da=1", "-Xmx64m", "-Db", "-Da=2", "Main", "arg"),
+				base.toArguments());
+	}
+	
 }
@@ -0,0 +1,91 @@
+package com.sun.akuma.test;
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.Autoscaler;
+
+
+public class AutoscalerTest extends TestCase {
+	
+	private Autoscaler create() {
+		return new Autoscaler(2, 8).setScaleUpDelay(1000).setScaleDownDelay(10000).setCooldown(5000);
+	}
+	
+	public void testClampsToRange() {
+		Assert.assertEquals(2, create().sample(0, 0, 0, 0));
+		Assert.assertEquals(8, create().sample(10, 0, 0, 0));
+	}
+	
+	public void testScaleUpAfterDelay() {
+		Autoscaler a = create();
+		Assert.assertEquals(2, a.sample(2, 2, 0, 0));
+		Assert.assertEquals(2, a.sample(2, 2, 0, 500));
+		// all busy for a second
+		Assert.assertEquals(3, a.sample(2, 2, 0, 1000));
+		// cooldown
+		Assert.assertEquals(3, a.sample(3, 3, 5, 2000));
+		Assert.assertEquals(3, a.sample(3, 3, 5, 5999));
+		Assert.assertEquals(4, a.sample(3, 3, 5, 7000));
+	}
+	
+	public void testBlipDoesNotScale() {
+		Autoscaler a = create();
+		Assert.assertEquals(2, a.sample(2, 2, 0, 0));
+		Assert.assertEquals(2, a.sample(2, 1, 0, 500));
+		Assert.assertEquals(2, a.sample(2, 2, 0, 1000));
+		Assert.assertEquals(2, a.sample(2, 2, 0, 1500));
+		Assert.assertEquals(3, a.sample(2, 2, 0, 2000));
+	}
+	
+	public void testGrowsInOneStep() {
+		Autoscaler a = create();
+		a.sample(4, 4, 0, 0);
+		// 4 busy workers need 5 to get under 80%
+		Assert.assertEquals(5, a.sample(4, 4, 0, 1000));
+	}
+	
+	public void testScaleDown() {
+		Autoscaler a = create();
+		Assert.assertEquals(6, a.sample(6, 1, 0, 0));
+		Assert.assertEquals(6, a.sample(6, 1, 0, 9999));
+		Assert.assertEquals(5, a.sample(6, 1, 0, 10000));
+		// one at a time, after the cooldown and the delay
+		Assert.assertEquals(5, a.sample(5, 1, 0, 15000));
+		Assert.assertEquals(5, a.sample(5, 1, 0, 24999));
+		Assert.assertEquals(4, a.sample(5, 1, 0, 25000));
+		// never below the minimum
+		Assert.assertEquals(2, a.sample(2, 0, 0, 100000));
+		Assert.assertEquals(2, a.sample(2, 0, 0, 200000));
+	}
+	
+	public void testHysteresis() {
+		Autoscaler a = new Autoscaler(1, 8).setScaleDownThreshold(0.5).setScaleDownDelay(0).setCooldown(0);
+		// 2 of 4 are busy, but shrinking to 3 would put it at 67%, which is fine
+		Assert.assertEquals(3, a.sample(4, 2, 0, 0));
+		// 1 of 2 is busy, and shrinking to 1 would put it at 100%
+		Assert.assertEquals(2, a.sample(2, 1, 0, 1000));
+		// queued connections keep it from shrinking
+		Assert.assertEquals(4, a.sample(4, 0, 1, 2000));
+	}
+	
+	public void testLoad() {
+		Autoscaler a = create().setCapacity(100);
+		Assert.assertEquals(0.0, a.getLoad(0), 0);
+		Assert.assertEquals(0.5, a.getLoad(50), 0);
+		Assert.assertEquals(1.0, a.getLoad(300), 0);
+	}
+	
+	public void testLightLoadDoesNotScaleUp() {
+		Autoscaler a = create();
+		// every worker serves a request or two at any time, which is far from its capacity
+		double busy = a.getLoad(1) + a.getLoad(2);
+		for (long t=0; t<60000; t+=1000)
+			Assert.assertEquals(2, a.sample(2, busy, 0, t));
+		
+		// while connections piling up in the workers do
+		busy = a.getLoad(240) + a.getLoad(256);
+		Assert.assertEquals(2, a.sample(2, busy, 0, 60000));
+		Assert.assertEquals(3, a.sample(2, busy, 0, 61000));
+	}
+	
+}
@@ -0,0 +1,117 @@
+package com.sun.akuma.test;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.ContainerLimits;
+import com.sun.akuma.JavaVMArguments;
+
+
+public class ContainerLimitsTest extends TestCase {
+	
+	private File root;
+	
+	@Override
+	protected void setUp() throws Exception {
+		root = File.createTempFile("akuma", "cgroup");
+		root.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		delete(root);
+	}
+	
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null)
+			for (File c : children)
+				delete(c);
+		f.delete();
+	}
+	
+	private void write(String path, String content) throws IOException {
+		File f = new File(root, path);
+		f.getParentFile().mkdirs();
+		FileWriter w = new FileWriter(f);
+		w.write(content + "\n");
+		w.close();
+	}
+	
+	private ContainerLimits read() throws IOException {
+		return ContainerLimits.read(new File(root, "cgroup"), new File(root, "fs"));
+	}
+	
+	public void testV2() throws IOException {
+		write("cgroup", "0::/pod/app");
+		write("fs/pod/app/cpu.max", "max 100000");
+		write("fs/pod/app/memory.max", "max");
+		// limits of ancestors apply, too
+		write("fs/pod/cpu.max", "250000 100000");
+		write("fs/pod/memory.max", "1073741824");
+		write("fs/memory.max", "2147483648");
+		
+		ContainerLimits l = read();
+		Assert.assertEquals(2.5, l.getCpus(), 0.001);
+		Assert.assertEquals(1073741824L, l.getMemory());
+	}
+	
+	public void testV1() throws IOException {
+		write("cgroup", "4:memory:/docker/abc\n2:cpu,cpuacct:/docker/abc\n1:name=systemd:/docker/abc");
+		write("fs/cpu,cpuacct/docker/abc/cpu.cfs_quota_us", "50000");
+		write("fs/cpu,cpuacct/docker/abc/cpu.cfs_period_us", "100000");
+		write("fs/cpu,cpuacct/cpu.cfs_quota_us", "-1");
+		write("fs/cpu,cpuacct/cpu.cfs_period_us", "100000");
+		write("fs/memory/docker/abc/memory.limit_in_bytes", "536870912");
+		write("fs/memory/memory.limit_in_bytes", "9223372036854771712");
+		
+		ContainerLimits l = read();
+		Assert.assertEquals(0.5, l.getCpus(), 0.001);
+		Assert.assertEquals(536870912L, l.getMemory());
+		Assert.assertEquals(1, l.getWorkerCount());
+	}
+	
+	public void testUnlimited() throws IOException {
+		write("cgroup", "0::/");
+		write("fs/cpu.max", "max 100000");
+		write("fs/memory.max", "max");
+		
+		ContainerLimits l = read();
+		Assert.assertTrue(l.getCpus() < 0);
+		Assert.assertTrue(l.getMemory() < 0);
+		Assert.assertEquals(Runtime.getRuntime().availableProcessors(), l.getWorkerCount());
+		
+		JavaVMArguments args = new JavaVMArguments(Arrays.asList("java", "-Xmx4g", "Main"));
+		l.sizeWorker(args, 4, 0);
+		Assert.assertEquals(Arrays.asList("java", "-Xmx4g", "Main"), args);
+	}
+	
+	public void testSizeWorker() {
+		ContainerLimits l = new ContainerLimits(-1, 4096L << 20);
+		JavaVMArguments args = new JavaVMArguments(Arrays.asList("java", "-Xms2g", "-Xmx4g", "-Xss1m", "Main"));
+		// 4 workers share 4GB minus 96MB for the frontend, and half of that is heap
+		l.sizeWorker(args, 4, 96L << 20);
+		Assert.assertEquals(Arrays.asList("java", "-Xmx500m", "-Xss1m", "Main"), args);
+		
+		// smaller heap is left alone
+		args = new JavaVMArguments(Arrays.asList("java", "-XX:MaxHeapSize=256m", "Main"));
+		l.sizeWorker(args, 4, 0);
+		Assert.assertEquals(Arrays.asList("java", "-XX:MaxHeapSize=256m", "Main"), args);
+	}
+	
+	public void testProcessorShare() {
+		if (System.getProperty("java.specification.version").startsWith("1."))
+			return;
+		JavaVMArguments args = new JavaVMArguments(Arrays.asList("java", "Main"));
+		new ContainerLimits(3, -1).sizeWorker(args, 2, 0);
+		Assert.assertEquals(Arrays.asList("java", "-XX:ActiveProcessorCount=2", "Main"), args);
+		
+		args = new JavaVMArguments(Arrays.asList("java", "-XX:ActiveProcessorCount=4", "Main"));
+		new ContainerLimits(3, -1).sizeWorker(args, 2, 0);
+		Assert.assertEquals(Arrays.asList("java", "-XX:ActiveProcessorCount=4", "Main"), args);
+	}
+}
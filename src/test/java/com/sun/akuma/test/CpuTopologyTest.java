@@ -0,0 +1,46 @@
+package com.sun.akuma.test;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.CpuTopology;
+
+
+public class CpuTopologyTest extends TestCase {
+	
+	public void testParseList() {
+		Assert.assertEquals("{0, 1, 2, 3, 8, 10, 11}", CpuTopology.parseList("0-3,8,10-11\n").toString());
+	}
+	
+	public void testPlacement() {
+		CpuTopology t = new CpuTopology(Arrays.asList(
+				CpuTopology.parseList("0-1"), CpuTopology.parseList("2-3")));
+		Assert.assertEquals("{0, 1}", t.getNodeOf(0).toString());
+		Assert.assertEquals("{2, 3}", t.getNodeOf(1).toString());
+		Assert.assertEquals("{0, 1}", t.getNodeOf(2).toString());
+		// spread across nodes first
+		Assert.assertEquals("{0}", t.getCpuOf(0).toString());
+		Assert.assertEquals("{2}", t.getCpuOf(1).toString());
+		Assert.assertEquals("{1}", t.getCpuOf(2).toString());
+		Assert.assertEquals("{3}", t.getCpuOf(3).toString());
+		Assert.assertEquals("{0}", t.getCpuOf(4).toString());
+	}
+	
+	public void testAffinity() throws IOException {
+		BitSet original = CpuTopology.getAffinity();
+		Assert.assertFalse(original.isEmpty());
+		BitSet one = new BitSet();
+		one.set(original.nextSetBit(0));
+		CpuTopology.setAffinity(one);
+		try {
+			Assert.assertEquals(one, CpuTopology.getAffinity());
+		} finally {
+			CpuTopology.setAffinity(original);
+		}
+		Assert.assertEquals(original, CpuTopology.getAffinity());
+	}
+	
+}
@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.test;
+
+import com.sun.akuma.ListenerOptions;
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class ListenerOptionsTest extends TestCase {
+	public void testSystemProperties() {
+		System.setProperty("test.backlog", "4096");
+		System.setProperty("test.tcpNoDelay", "true");
+		try {
+			ListenerOptions o = ListenerOptions.fromSystemProperties("test.");
+			Assert.assertEquals(4096, o.getBacklog());
+			Assert.assertTrue(o.isTcpNoDelay());
+			Assert.assertEquals(0, o.getDeferAccept());
+			Assert.assertFalse(o.isIncomingCpu());
+		} finally {
+			System.clearProperty("test.backlog");
+			System.clearProperty("test.tcpNoDelay");
+		}
+	}
+	
+	/**
+	 * Accepted connections inherit the options of the listening socket.
+	 */
+	public void testInherited() throws IOException {
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		try {
+			new ListenerOptions().setBacklog(1024).setTcpNoDelay(true).setSendBufferSize(256*1024)
+				.setDeferAccept(1).bind(ch, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), -1);
+			
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), ch.socket().getLocalPort());
+			// with TCP_DEFER_ACCEPT, the connection isn't accepted until there's data
+			client.getOutputStream().write('x');
+			Socket s = ch.accept().socket();
+			Assert.assertTrue(s.getTcpNoDelay());
+			// the kernel doubles the requested size
+			Assert.assertTrue(s.getSendBufferSize() >= 256*1024);
+			s.close();
+			client.close();
+		} finally {
+			ch.close();
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package com.sun.akuma.test;
+import java.io.IOException;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.ProcessSampler;
+import com.sun.akuma.ProcessStats;
+import static com.sun.akuma.CLibrary.LIBC;
+
+
+public class ProcessSamplerTest extends TestCase {
+	
+	public void testSampleSelf() throws IOException {
+		ProcessStats s = ProcessSampler.sample(LIBC.getpid());
+		Assert.assertEquals(LIBC.getpid(), s.getPid());
+		Assert.assertTrue(s.getThreads() > 1);
+		Assert.assertTrue(s.getResidentMemory() > 0);
+		Assert.assertTrue(s.getVirtualMemory() >= s.getResidentMemory());
+		Assert.assertTrue(s.getCpuTime() > 0);
+		Assert.assertTrue(s.getVoluntaryContextSwitches() >= 0);
+		Assert.assertTrue(s.getReadSyscalls() > 0);
+	}
+	
+	public void testNoSuchProcess() {
+		try {
+			ProcessSampler.sample(Integer.MAX_VALUE);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package com.sun.akuma.test;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.CLibrary;
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.ProcessScanner;
+
+
+public class ProcessScannerTest extends TestCase {
+	
+	public void testScanSelf() throws IOException{
+		int pid = CLibrary.LIBC.getpid();
+		List<ProcessScanner.Entry> r = new ProcessScanner().setReadEnvironment(true)
+				.scan(Collections.singletonList(pid));
+		Assert.assertEquals(1, r.size());
+		Assert.assertEquals(pid, r.get(0).getPid());
+		Assert.assertEquals(JavaVMArguments.current(), r.get(0).getArguments());
+		Assert.assertEquals(System.getenv("PATH"), r.get(0).getEnvironment().get("PATH"));
+	}
+	
+	public void testMarker() throws IOException{
+		Assert.assertTrue(new ProcessScanner("no.such.marker").scan().isEmpty());
+		Assert.assertTrue(new ProcessScanner("no.such.marker").setParallelism(4)
+				.scan(Collections.singletonList(-1)).isEmpty());
+	}
+	
+}
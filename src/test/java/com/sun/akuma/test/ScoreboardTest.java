@@ -0,0 +1,149 @@
+package com.sun.akuma.test;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.Scoreboard;
+
+
+public class ScoreboardTest extends TestCase {
+	
+	public void testUpdatesAreVisibleThroughAnotherMapping() throws IOException{
+		File f = File.createTempFile("akuma","scoreboard");
+		f.delete();
+		try{
+			Scoreboard writer = Scoreboard.create(f, 4);
+			Scoreboard reader = Scoreboard.open(f);
+			Assert.assertEquals(4, reader.size());
+			Assert.assertEquals(Scoreboard.State.EMPTY, reader.get(2).getState());
+
+			Scoreboard.Slot slot = writer.get(2);
+			slot.ready();
+			slot.opened();
+			slot.bytesIn(10);
+			slot.bytesOut(20);
+			Assert.assertEquals(Scoreboard.State.BUSY, reader.get(2).getState());
+			Assert.assertEquals(1, reader.get(2).getAccepted());
+			Assert.assertEquals(10, reader.get(2).getBytesIn());
+			Assert.assertEquals(20, reader.get(2).getBytesOut());
+			Assert.assertTrue(reader.get(2).getHeartbeat() > 0);
+
+			slot.closed();
+			Assert.assertEquals(Scoreboard.State.IDLE, reader.get(2).getState());
+			Assert.assertEquals(Scoreboard.State.EMPTY, reader.get(1).getState());
+		}finally{
+			f.delete();
+		}
+	}
+	
+	public void testConcurrentIncrements() throws Exception{
+		File f = File.createTempFile("akuma","scoreboard");
+		f.delete();
+		try{
+			final Scoreboard.Slot slot = Scoreboard.create(f, 1).get(0);
+			Thread[] threads = new Thread[4];
+			for (int i=0; i<threads.length; i++) {
+				threads[i] = new Thread() {
+					public void run() {
+						for (int j=0; j<10000; j++)
+							slot.bytesIn(1);
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			Assert.assertEquals(40000, Scoreboard.open(f).get(0).getBytesIn());
+		}finally{
+			f.delete();
+		}
+	}
+	
+	public void testCreateRefusesExistingFile() throws IOException{
+		File f = File.createTempFile("akuma","scoreboard");
+		File link = new File(f.getPath()+".link");
+		try{
+			try{
+				Scoreboard.create(f, 1);
+				Assert.fail();
+			}catch(IOException e){
+				// expected
+			}
+			Files.createSymbolicLink(link.toPath(), f.toPath());
+			f.delete();
+			try{
+				Scoreboard.create(link, 1);
+				Assert.fail();
+			}catch(IOException e){
+				// expected
+			}
+			Assert.assertFalse(f.exists());
+		}finally{
+			link.delete();
+			f.delete();
+		}
+	}
+	
+	public void testNotAScoreboard() throws IOException{
+		File f = File.createTempFile("akuma","scoreboard");
+		try{
+			Scoreboard.open(f);
+			Assert.fail();
+		}catch(IOException e){
+			// expected
+		}finally{
+			f.delete();
+		}
+	}
+	
+	public void testTruncatedScoreboard() throws IOException{
+		File f = File.createTempFile("akuma","scoreboard");
+		f.delete();
+		try{
+			Scoreboard.create(f, 4);
+			RandomAccessFile raf = new RandomAccessFile(f,"rw");
+			try{
+				raf.setLength(f.length()-1);
+			}finally{
+				raf.close();
+			}
+			try{
+				Scoreboard.open(f);
+				Assert.fail();
+			}catch(IOException e){
+				// expected
+			}
+		}finally{
+			f.delete();
+		}
+	}
+	
+	public void testCorruptSlotCount() throws IOException{
+		File f = File.createTempFile("akuma","scoreboard");
+		f.delete();
+		try{
+			Scoreboard.create(f, 1);
+			RandomAccessFile raf = new RandomAccessFile(f,"rw");
+			try{
+				// the slot count right after the magic, in either byte order
+				raf.seek(8);
+				raf.writeLong(-1);
+			}finally{
+				raf.close();
+			}
+			try{
+				Scoreboard.open(f);
+				Assert.fail();
+			}catch(IOException e){
+				// expected
+			}
+		}finally{
+			f.delete();
+		}
+	}
+	
+}
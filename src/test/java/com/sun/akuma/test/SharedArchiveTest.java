@@ -0,0 +1,113 @@
+package com.sun.akuma.test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.SharedArchive;
+
+
+public class SharedArchiveTest extends TestCase {
+	
+	private File dir;
+	
+	@Override
+	protected void setUp() throws Exception {
+		dir = File.createTempFile("akuma", "cds");
+		dir.delete();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = dir.listFiles();
+		if (files != null)
+			for (File f : files)
+				f.delete();
+		dir.delete();
+	}
+	
+	private static boolean supported() {
+		String v = System.getProperty("java.specification.version");
+		return !v.startsWith("1.") && Integer.parseInt(v) >= 13;
+	}
+	
+	private static JavaVMArguments args(String... args) {
+		return new JavaVMArguments(Arrays.asList(args));
+	}
+	
+	public void testCreatesThenUses() throws Exception {
+		if (!supported())
+			return;
+		SharedArchive a = new SharedArchive(dir, "app.jar");
+		
+		JavaVMArguments first = args("java", "Main");
+		Assert.assertTrue(a.apply(first));
+		Assert.assertEquals(args("java", "-XX:ArchiveClassesAtExit=" + a.getFile(), "Main"), first);
+		
+		// only one process creates it at a time
+		JavaVMArguments second = args("java", "Main");
+		Assert.assertFalse(a.apply(second));
+		Assert.assertEquals(args("java", "Main"), second);
+		
+		new FileOutputStream(a.getFile()).close();
+		a.failed();
+		
+		// the options inherited from the process that created it get replaced
+		Assert.assertFalse(a.apply(first));
+		Assert.assertEquals(args("java", "-XX:SharedArchiveFile=" + a.getFile(), "Main"), first);
+	}
+	
+	public void testRetriesAfterFailedLaunch() throws Exception {
+		if (!supported())
+			return;
+		SharedArchive a = new SharedArchive(dir, "app.jar");
+		Assert.assertTrue(a.apply(args("java", "Main")));
+		a.failed();
+		Assert.assertTrue(a.apply(args("java", "Main")));
+	}
+	
+	public void testDirectoryOnClassPath() throws Exception {
+		dir.mkdirs();
+		new FileOutputStream(new File(dir, "Main.class")).close();
+		SharedArchive a = new SharedArchive(dir, "app.jar" + File.pathSeparator + dir);
+		JavaVMArguments args = args("java", "Main");
+		Assert.assertFalse(a.apply(args));
+		Assert.assertEquals(args("java", "Main"), args);
+	}
+	
+	public void testRespectsExplicitOptions() throws Exception {
+		SharedArchive a = new SharedArchive(dir, "app.jar");
+		JavaVMArguments args = args("java", "-Xshare:off", "Main");
+		Assert.assertFalse(a.apply(args));
+		Assert.assertEquals(args("java", "-Xshare:off", "Main"), args);
+	}
+	
+	public void testDeletesStaleArchives() throws Exception {
+		if (!supported())
+			return;
+		SharedArchive a = new SharedArchive(dir, "app.jar");
+		Files.createDirectory(dir.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		String name = a.getFile().getName();
+		File stale = new File(dir, name.substring(0, name.lastIndexOf('-')) + "-0123456789abcdef.jsa");
+		new FileOutputStream(stale).close();
+		Assert.assertTrue(a.apply(args("java", "Main")));
+		Assert.assertFalse(stale.exists());
+	}
+	
+	public void testRefusesSharedDirectory() throws Exception {
+		if (!supported())
+			return;
+		SharedArchive a = new SharedArchive(dir, "app.jar");
+		dir.mkdirs();
+		Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+		new FileOutputStream(a.getFile()).close();
+		JavaVMArguments args = args("java", "Main");
+		Assert.assertFalse(a.apply(args));
+		Assert.assertEquals(args("java", "Main"), args);
+	}
+}
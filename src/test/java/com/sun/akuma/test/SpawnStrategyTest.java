@@ -0,0 +1,60 @@
+package com.sun.akuma.test;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import com.sun.akuma.JavaVMArguments;
+import com.sun.akuma.SpawnStrategy;
+import com.sun.jna.ptr.IntByReference;
+
+import static com.sun.akuma.CLibrary.LIBC;
+
+
+public class SpawnStrategyTest extends TestCase {
+	
+	public void testForkClosesUnlistedDescriptors() throws Exception {
+		checkInherited(SpawnStrategy.FORK_EXEC);
+	}
+	
+	public void testPosixSpawnClosesUnlistedDescriptors() throws Exception {
+		checkInherited(SpawnStrategy.POSIX_SPAWN);
+	}
+	
+	private void checkInherited(SpawnStrategy strategy) throws Exception {
+		int[] leaked = new int[2];
+		int[] kept = new int[2];
+		Assert.assertEquals(0, LIBC.pipe(leaked));
+		Assert.assertEquals(0, LIBC.pipe(kept));
+		File out = File.createTempFile("akuma","fds");
+		try{
+			JavaVMArguments args = new JavaVMArguments(Arrays.asList(
+					"sh", "-c", "ls /proc/$$/fd > "+out.getPath()));
+			int pid = strategy.spawn("/bin/sh", args, -1, new int[]{kept[1]});
+			Assert.assertTrue(pid > 0);
+			IntByReference status = new IntByReference();
+			Assert.assertEquals(pid, LIBC.waitpid(pid, status, 0));
+			Assert.assertEquals(0, status.getValue());
+			
+			Set<String> fds = new HashSet<String>(Files.readAllLines(out.toPath()));
+			Assert.assertTrue(fds.toString(), fds.contains(String.valueOf(kept[1])));
+			Assert.assertFalse(fds.toString(), fds.contains(String.valueOf(kept[0])));
+			Assert.assertFalse(fds.toString(), fds.contains(String.valueOf(leaked[0])));
+			Assert.assertFalse(fds.toString(), fds.contains(String.valueOf(leaked[1])));
+			
+			// the current process keeps them all
+			Assert.assertEquals(1, LIBC.write(leaked[1], new byte[1], 1));
+		}finally{
+			out.delete();
+			for (int fd : leaked)
+				LIBC.close(fd);
+			for (int fd : kept)
+				LIBC.close(fd);
+		}
+	}
+	
+}
@@ -0,0 +1,62 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2009-, Sun Microsystems, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sun.akuma.test;
+
+import com.sun.akuma.WorkerConfig;
+import org.junit.Assert;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * @author Kohsuke Kawaguchi
+ */
+public class WorkerConfigTest extends TestCase {
+	public void testValues() {
+		WorkerConfig c = new WorkerConfig()
+			.put("name", "worker")
+			.put("slot", -3)
+			.put("blob", new byte[]{1, 2, 3})
+			.putDescriptors("fds", 5, 7);
+		Assert.assertEquals("worker", c.getString("name"));
+		Assert.assertEquals(-3, c.getInt("slot", 0));
+		Assert.assertEquals(42, c.getInt("missing", 42));
+		Assert.assertTrue(Arrays.equals(new byte[]{1, 2, 3}, c.get("blob")));
+		Assert.assertTrue(Arrays.equals(new int[]{5, 7}, c.getDescriptors("fds")));
+		Assert.assertNull(c.getDescriptors("name"));
+		Assert.assertEquals(Arrays.asList("name", "slot", "blob", "fds"), Arrays.asList(c.keySet().toArray()));
+		
+		// copies are independent
+		WorkerConfig copy = new WorkerConfig(c).put("slot", 1);
+		Assert.assertEquals(1, copy.getInt("slot", 0));
+		Assert.assertEquals(-3, c.getInt("slot", 0));
+	}
+	
+	/**
+	 * Outside of workers, there's nothing to read.
+	 */
+	public void testCurrent() {
+		Assert.assertTrue(WorkerConfig.current().keySet().isEmpty());
+	}
+}